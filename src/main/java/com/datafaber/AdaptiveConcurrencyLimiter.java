@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber;
+
+import com.datafaber.model.FavroExportMetrics;
+import com.google.common.base.Preconditions;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits the number of concurrent requests to the Favro API with an additive increase / multiplicative decrease policy
+ *
+ * The limit grows by one request per "round" of successful requests while their latency stays close to the
+ * baseline of their endpoint, and is halved on latency spikes, throttled requests or errors. The baseline is kept
+ * separately for each endpoint, since a page of cards normally takes much longer than the tasks of a card.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+  // initial number of concurrent requests
+  private static final int INITIAL_LIMIT = 2;
+
+  // a request slower than the baseline latency times this factor is considered a latency spike
+  private static final double LATENCY_TOLERANCE = 2.0;
+
+  // factor applied to the limit on latency spikes, throttling or errors
+  private static final double BACKOFF_RATIO = 0.5;
+
+  // weight of a new sample in the baseline latency
+  private static final double BASELINE_SMOOTHING = 0.05;
+
+  // bounds of the limit
+  private final int mMinLimit;
+  private final int mMaxLimit;
+
+  // current limit (fractional, to allow the additive increase to accumulate)
+  private double mLimit;
+
+  // requests currently in flight
+  private int mInFlight;
+
+  // smoothed latency (in msecs) of the successful requests, by endpoint
+  private final Map<String, Double> mBaselineLatencies = new HashMap<>();
+
+  // time (in msecs) of the last decrease, used to react only once to a burst of failures
+  private long mLastDecrease;
+
+  private final FavroExportMetrics mMetrics;
+
+  private static Logger mLogger = LogManager.getLogger("com.datafaber.AdaptiveConcurrencyLimiter");
+
+
+  /**
+   * @param pMaxLimit maximum number of concurrent requests
+   * @param pMetrics metrics where the current limit is published
+   */
+  public AdaptiveConcurrencyLimiter (int pMaxLimit, FavroExportMetrics pMetrics) {
+    Preconditions.checkArgument(pMaxLimit >= 1, "the maximum concurrency must be at least 1");
+    Preconditions.checkNotNull(pMetrics);
+    mMinLimit = 1;
+    mMaxLimit = pMaxLimit;
+    mLimit = Math.min(INITIAL_LIMIT, pMaxLimit);
+    mMetrics = pMetrics;
+    mMetrics.setConcurrencyLimit(getLimit());
+  }
+
+
+  /**
+   * Waits until a request can be sent without exceeding the current limit
+   */
+  public synchronized void acquire () {
+    boolean interrupted = false;
+    while (mInFlight >= getLimit()) {
+      try {
+        wait();
+      } catch (InterruptedException ie) {
+        interrupted = true;
+      }
+    }
+    mInFlight++;
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+
+  /**
+   * Releases a request that completed successfully, growing the limit if its latency was not a spike
+   * @param pEndpoint endpoint of the request, such as "/cards"
+   * @param pLatencyMsecs latency of the request
+   */
+  public synchronized void onSuccess (String pEndpoint, long pLatencyMsecs) {
+    Preconditions.checkNotNull(pEndpoint);
+    Double baseline = mBaselineLatencies.get(pEndpoint);
+    boolean spike = baseline != null && baseline > 0 && pLatencyMsecs > baseline * LATENCY_TOLERANCE;
+    mBaselineLatencies.put(pEndpoint, (baseline == null) ? pLatencyMsecs : baseline + BASELINE_SMOOTHING * (pLatencyMsecs - baseline));
+    if (spike) {
+      decrease("latency spike (" + pLatencyMsecs + " msecs)");
+    } else if (mInFlight >= getLimit()) {
+      // grow only when the limit is actually what's holding the requests back
+      int previous = getLimit();
+      mLimit = Math.min(mMaxLimit, mLimit + 1.0 / mLimit);
+      if (getLimit() != previous) {
+        mLogger.info("Concurrency limit increased to {}", getLimit());
+      }
+    }
+    release();
+  }
+
+
+  /**
+   * Releases a request that was throttled or failed, reducing the limit
+   */
+  public synchronized void onDropped () {
+    decrease("throttled or failed request");
+    release();
+  }
+
+
+  /**
+   * @return current limit of concurrent requests
+   */
+  public synchronized int getLimit () {
+    return (int) mLimit;
+  }
+
+
+  /**
+   * Reduces the limit, unless it was already reduced within the baseline latency of the slowest endpoint
+   * (the requests failing in the same burst were all sent under the old limit)
+   * @param pReason reason for the decrease, for the logs
+   */
+  private void decrease (String pReason) {
+    long now = System.currentTimeMillis();
+    double slowestBaseline = mBaselineLatencies.values().stream().mapToDouble(Double::doubleValue).max().orElse(0);
+    if (now - mLastDecrease < Math.max(slowestBaseline, 1)) {
+      return;
+    }
+    mLastDecrease = now;
+    int previous = getLimit();
+    mLimit = Math.max(mMinLimit, mLimit * BACKOFF_RATIO);
+    if (getLimit() != previous) {
+      mLogger.info("Concurrency limit decreased to {} after {}", getLimit(), pReason);
+    }
+  }
+
+
+  /**
+   * Frees a slot and publishes the current limit
+   */
+  private void release () {
+    mInFlight--;
+    mMetrics.setConcurrencyLimit(getLimit());
+    notifyAll();
+  }
+
+} // end AdaptiveConcurrencyLimiter
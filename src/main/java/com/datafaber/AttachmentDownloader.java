@@ -0,0 +1,433 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.hash.HashCode;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads attachments straight into a file channel, through a temporary file that is renamed when the download is complete
+ *
+ * The temporary files are kept in a separate directory of the export, so that their names cannot clash with the
+ * names of the attachments. A download that fails halfway leaves its temporary file behind, and the next download
+ * of the same file resumes from where it stopped with an HTTP Range request. The ETag (or Last-Modified date) of the
+ * file is kept along with the temporary file and sent in an If-Range header, so that the server sends the whole file again if it
+ * has changed in the meantime; a temporary file without it is discarded. A download still running when the deadline is reached
+ * is stopped, and its temporary file is kept for the next export.
+ */
+public class AttachmentDownloader {
+
+  // directory (in the export directory) holding the downloads in progress, out of the way of the attachments
+  public static final String PARTIAL_DIR_NAME = ".partial-downloads";
+
+  // sub-directories of PARTIAL_DIR_NAME holding the temporary files and their validators (ETag or Last-Modified date),
+  // under the same relative path as their attachment
+  private static final String FILES_DIR_NAME = "files";
+  private static final String VALIDATORS_DIR_NAME = "validators";
+
+  // connect and read timeout, in msecs
+  private static final int TIMEOUT = 30000;
+
+  // number of attempts for each download, each one resuming the previous
+  private static final int MAX_ATTEMPTS = 3;
+
+  // maximum number of bytes transferred by a single call to transferFrom (the deadline is checked between calls)
+  private static final long TRANSFER_CHUNK_SIZE = 1024L * 1024;
+
+  // HTTP status codes
+  private static final int HTTP_OK = 200;
+  private static final int HTTP_PARTIAL_CONTENT = 206;
+  private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+  // Content-Range header of a partial response, such as "bytes 100-199/200"
+  private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-\\d+/(\\d+|\\*)");
+
+  // Content-Range header of a response to a range starting past the end of the file, such as "bytes */200"
+  private static final Pattern UNSATISFIED_RANGE = Pattern.compile("bytes \\*/(\\d+)");
+
+  // time (in msecs since the epoch) when the downloads must stop, zero if there is no deadline
+  private volatile long mDeadline;
+
+  private static Logger mLogger = LogManager.getLogger("com.datafaber.AttachmentDownloader");
+
+
+  /**
+   * Sets a deadline after which no download is started or continued
+   * @param pDeadline time (in msecs since the epoch) when the downloads must stop, zero for no deadline
+   */
+  public void setDeadline (long pDeadline) {
+    mDeadline = pDeadline;
+  }
+
+
+  /**
+   * Downloads a file, resuming a previous partial download if there is one
+   * @param pUrl url of the file
+   * @param pDestDir export directory
+   * @param pRelativePath path of the destination file, relative to the export directory
+   * @return SHA-256 of the downloaded file, or null if the deadline was reached before the download was complete
+   * @throws IOException if the file could not be downloaded completely
+   */
+  public HashCode download (URL pUrl, File pDestDir, String pRelativePath) throws IOException {
+    Preconditions.checkNotNull(pUrl);
+    Preconditions.checkNotNull(pDestDir);
+    Preconditions.checkNotNull(pRelativePath);
+    File destFile = new File(pDestDir, pRelativePath);
+    File partialFile = new File(getPartialFilesDir(pDestDir), pRelativePath);
+    File validatorFile = new File(getValidatorsDir(pDestDir), pRelativePath);
+    Files.createDirectories(partialFile.getParentFile().toPath());
+    Files.createDirectories(validatorFile.getParentFile().toPath());
+    IOException lastException = null;
+    for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+      if (isPastDeadline()) {
+        mLogger.warn("Download of {} stopped at {} bytes, the deadline was reached", pUrl, partialFile.length());
+        return null;
+      }
+      try {
+        HashCode hash = downloadToPartialFile(pUrl, partialFile, validatorFile);
+        if (hash == null) {
+          mLogger.warn("Download of {} stopped at {} bytes, the deadline was reached", pUrl, partialFile.length());
+          return null;
+        }
+        moveToDestination(partialFile, destFile);
+        Files.deleteIfExists(validatorFile.toPath());
+        return hash;
+      } catch (IOException ioe) {
+        lastException = ioe;
+        mLogger.warn("Download of {} interrupted at {} bytes (attempt {}): {}", pUrl, partialFile.length(), attempt, ioe.getMessage());
+      }
+    }
+    throw lastException;
+  }
+
+
+  /**
+   * Deletes the partial downloads of the files that are not in the given set, and the directories left empty
+   * @param pDestDir export directory
+   * @param pRelativePaths paths (relative to the export directory) of the files whose partial downloads must be kept
+   */
+  public static void removeStalePartialDownloads (File pDestDir, Set<String> pRelativePaths) {
+    String ctx = "removeStalePartialDownloads - ";
+    Preconditions.checkNotNull(pDestDir);
+    Preconditions.checkNotNull(pRelativePaths);
+    for (File dir : new File[] { getPartialFilesDir(pDestDir), getValidatorsDir(pDestDir) }) {
+      if (!dir.isDirectory()) {
+        continue;
+      }
+      Collection<File> files = FileUtils.listFiles(dir, null, true);
+      for (File file : files) {
+        String relativePath = dir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+        if (!pRelativePaths.contains(relativePath)) {
+          if (file.delete()) {
+            mLogger.info("{}deleted stale partial download {}", ctx, file.getAbsolutePath());
+          } else {
+            mLogger.error("{}could not delete stale partial download {}", ctx, file.getAbsolutePath());
+          }
+        }
+      }
+    }
+    removeEmptyDirs(new File(pDestDir, PARTIAL_DIR_NAME));
+  }
+
+
+  /**
+   * Deletes a directory and its sub-directories if they contain no files
+   * @param pDir directory to delete
+   */
+  private static void removeEmptyDirs (File pDir) {
+    File[] subDirs = pDir.listFiles(File::isDirectory);
+    if (subDirs == null) {
+      return;
+    }
+    for (File subDir : subDirs) {
+      removeEmptyDirs(subDir);
+    }
+    String[] remaining = pDir.list();
+    if (remaining != null && remaining.length == 0 && !pDir.delete()) {
+      mLogger.error("removeEmptyDirs - could not delete directory {}", pDir.getAbsolutePath());
+    }
+  }
+
+
+  /**
+   * @param pDestDir export directory
+   * @return directory holding the temporary files of the downloads in progress
+   */
+  private static File getPartialFilesDir (File pDestDir) {
+    return new File(new File(pDestDir, PARTIAL_DIR_NAME), FILES_DIR_NAME);
+  }
+
+
+  /**
+   * @param pDestDir export directory
+   * @return directory holding the validators of the downloads in progress
+   */
+  private static File getValidatorsDir (File pDestDir) {
+    return new File(new File(pDestDir, PARTIAL_DIR_NAME), VALIDATORS_DIR_NAME);
+  }
+
+
+  /**
+   * Downloads a file to its temporary file, appending to it if it already has some content
+   * and the file on the server has not changed since
+   * @param pUrl url of the file
+   * @param pPartialFile temporary file
+   * @param pValidatorFile file holding the validator of the temporary file
+   * @return SHA-256 of the complete file, or null if the deadline was reached during the download
+   * @throws IOException if the file could not be downloaded completely
+   */
+  private HashCode downloadToPartialFile (URL pUrl, File pPartialFile, File pValidatorFile) throws IOException {
+    long offset = pPartialFile.length();
+    String validator = pValidatorFile.isFile() ? new String(Files.readAllBytes(pValidatorFile.toPath()), StandardCharsets.UTF_8) : null;
+    if (offset > 0 && Strings.isNullOrEmpty(validator)) {
+      // there's no way to tell if the file on the server is still the one that was partially downloaded
+      mLogger.info("Discarding the partial download {}, it has no ETag or Last-Modified date", pPartialFile.getAbsolutePath());
+      Files.delete(pPartialFile.toPath());
+      offset = 0;
+    }
+    URLConnection connection = pUrl.openConnection();
+    boolean complete = false;
+    try {
+      connection.setConnectTimeout(TIMEOUT);
+      connection.setReadTimeout(TIMEOUT);
+      if (offset > 0) {
+        connection.setRequestProperty("Range", "bytes=" + offset + "-");
+        // if the file has changed, the server ignores the range and sends the whole new file
+        connection.setRequestProperty("If-Range", validator);
+      }
+
+      // find out where the response starts and how long the whole file is
+      long expectedSize = -1;
+      int status = (connection instanceof HttpURLConnection) ? ((HttpURLConnection) connection).getResponseCode() : HTTP_OK;
+      if (status == HTTP_PARTIAL_CONTENT) {
+        Matcher range = CONTENT_RANGE.matcher(String.valueOf(connection.getHeaderField("Content-Range")));
+        if (!range.matches() || Long.parseLong(range.group(1)) != offset) {
+          throw new IOException("unexpected Content-Range " + connection.getHeaderField("Content-Range"));
+        }
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null && validator.startsWith("\"") && !etag.equals(validator)) {
+          // the server didn't honor If-Range
+          discardPartialDownload(pPartialFile, pValidatorFile);
+          throw new IOException("file changed on the server, restarting the download");
+        }
+        if (!"*".equals(range.group(2))) {
+          expectedSize = Long.parseLong(range.group(2));
+        }
+      } else if (status == HTTP_OK) {
+        // the server sent the whole file, start over
+        offset = 0;
+        expectedSize = connection.getContentLengthLong();
+        saveValidator(connection, pValidatorFile);
+      } else if (status == HTTP_RANGE_NOT_SATISFIABLE) {
+        Matcher range = UNSATISFIED_RANGE.matcher(String.valueOf(connection.getHeaderField("Content-Range")));
+        if (range.matches() && Long.parseLong(range.group(1)) == offset) {
+          // the temporary file was already complete (the previous download stopped before renaming it)
+          MessageDigest digest = newDigest();
+          try (FileChannel file = FileChannel.open(pPartialFile.toPath(), StandardOpenOption.READ)) {
+            hashExistingContent(file, offset, digest);
+          }
+          return HashCode.fromBytes(digest.digest());
+        }
+        // the temporary file doesn't match the file on the server anymore
+        discardPartialDownload(pPartialFile, pValidatorFile);
+        throw new IOException("server rejected the range request, restarting the download");
+      } else {
+        throw new IOException("server returned status " + status);
+      }
+
+      MessageDigest digest = newDigest();
+      try (FileChannel file = FileChannel.open(pPartialFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+           InputStream in = connection.getInputStream()) {
+        file.truncate(offset);
+        hashExistingContent(file, offset, digest);
+
+        // transfer the response straight into the file, hashing it on the way
+        ReadableByteChannel source = new HashingChannel(Channels.newChannel(in), digest);
+        long position = offset;
+        long transferred;
+        while ((transferred = file.transferFrom(source, position, TRANSFER_CHUNK_SIZE)) > 0) {
+          position += transferred;
+          if (isPastDeadline()) {
+            return null;
+          }
+        }
+        if (expectedSize >= 0 && position != expectedSize) {
+          throw new IOException("downloaded " + position + " bytes, expected " + expectedSize);
+        }
+      }
+      complete = true;
+      return HashCode.fromBytes(digest.digest());
+    } finally {
+      if (!complete && connection instanceof HttpURLConnection) {
+        // a response read to the end leaves its connection for the next download; close the socket of any other one
+        ((HttpURLConnection) connection).disconnect();
+      }
+    }
+  }
+
+
+  /**
+   * @return true if there is a deadline and it has been reached
+   */
+  private boolean isPastDeadline () {
+    return mDeadline > 0 && System.currentTimeMillis() >= mDeadline;
+  }
+
+
+  /**
+   * Saves the validator of the file being downloaded: its ETag, unless it's a weak one (which cannot be used in
+   * an If-Range header), or else its Last-Modified date
+   * @param pConnection connection returning the whole file
+   * @param pValidatorFile file where the validator is saved (deleted if the server didn't send a validator)
+   * @throws IOException if the validator cannot be saved
+   */
+  private void saveValidator (URLConnection pConnection, File pValidatorFile) throws IOException {
+    String validator = pConnection.getHeaderField("ETag");
+    if (validator == null || validator.startsWith("W/")) {
+      validator = pConnection.getHeaderField("Last-Modified");
+    }
+    if (Strings.isNullOrEmpty(validator)) {
+      Files.deleteIfExists(pValidatorFile.toPath());
+    } else {
+      Files.write(pValidatorFile.toPath(), validator.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+
+  /**
+   * Deletes a temporary file and its validator
+   * @param pPartialFile temporary file
+   * @param pValidatorFile file holding the validator of the temporary file
+   * @throws IOException if the files cannot be deleted
+   */
+  private void discardPartialDownload (File pPartialFile, File pValidatorFile) throws IOException {
+    Files.deleteIfExists(pPartialFile.toPath());
+    Files.deleteIfExists(pValidatorFile.toPath());
+  }
+
+
+  /**
+   * Hashes the content already in the temporary file
+   * @param pFile temporary file
+   * @param pLength number of bytes to hash
+   * @param pDigest digest to update
+   * @throws IOException if the file cannot be read
+   */
+  private void hashExistingContent (FileChannel pFile, long pLength, MessageDigest pDigest) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    long position = 0;
+    while (position < pLength) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), pLength - position));
+      int read = pFile.read(buffer, position);
+      if (read < 0) {
+        throw new IOException("temporary file shorter than expected");
+      }
+      buffer.flip();
+      pDigest.update(buffer);
+      position += read;
+    }
+  }
+
+
+  /**
+   * Renames the complete temporary file to its final name
+   * @param pPartialFile temporary file
+   * @param pDestFile destination file
+   * @throws IOException if the file cannot be renamed
+   */
+  private void moveToDestination (File pPartialFile, File pDestFile) throws IOException {
+    try {
+      Files.move(pPartialFile.toPath(), pDestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException amnse) {
+      Files.move(pPartialFile.toPath(), pDestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+
+  /**
+   * @return new SHA-256 digest
+   */
+  private MessageDigest newDigest () {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new IllegalStateException("SHA-256 not available", nsae);
+    }
+  }
+
+
+  /**
+   * Channel that updates a digest with the bytes read through it
+   */
+  private static class HashingChannel implements ReadableByteChannel {
+    private final ReadableByteChannel mSource;
+    private final MessageDigest mDigest;
+
+    HashingChannel (ReadableByteChannel pSource, MessageDigest pDigest) {
+      mSource = pSource;
+      mDigest = pDigest;
+    }
+
+    @Override
+    public int read (ByteBuffer pDst) throws IOException {
+      int start = pDst.position();
+      int read = mSource.read(pDst);
+      if (read > 0) {
+        ByteBuffer readBytes = pDst.duplicate();
+        readBytes.limit(start + read);
+        readBytes.position(start);
+        mDigest.update(readBytes);
+      }
+      return read;
+    }
+
+    @Override
+    public boolean isOpen () {
+      return mSource.isOpen();
+    }
+
+    @Override
+    public void close () throws IOException {
+      mSource.close();
+    }
+  }
+
+} // end AttachmentDownloader
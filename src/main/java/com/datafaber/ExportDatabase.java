@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Utf8;
+import com.google.common.collect.ImmutableMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.sql.*;
+import java.util.Map;
+
+/**
+ * Embedded SQLite database where the exported entities are stored as an alternative to the JSON files
+ *
+ * Each entity type has its own table with the entity id, the ids of the organization, widget and card it belongs to,
+ * and the full JSON of the entity; the ids are indexed so that the data can be queried without scanning the whole export.
+ */
+public class ExportDatabase implements AutoCloseable {
+
+  // name of the database file in the export directory
+  public static final String DATABASE_FILE_NAME = "favro-export.db";
+
+  // number of rows sent to the database in a single batch
+  private static final int BATCH_SIZE = 500;
+
+  // column names, matching the attribute names used by the Favro API
+  private static final String ORGANIZATION_ID = "organizationId";
+  private static final String WIDGET_COMMON_ID = "widgetCommonId";
+  private static final String CARD_COMMON_ID = "cardCommonId";
+
+  // tables, keyed by entity type (the same names used for the JSON files)
+  private static final Map<String, Table> TABLES = ImmutableMap.<String, Table>builder()
+          .put("organizations", new Table("organizations", "organizationId", null, ORGANIZATION_ID))
+          .put("users", new Table("users", "userId", ORGANIZATION_ID, ORGANIZATION_ID))
+          .put("collections", new Table("collections", "collectionId", ORGANIZATION_ID, ORGANIZATION_ID))
+          .put("tags", new Table("tags", "tagId", ORGANIZATION_ID, ORGANIZATION_ID))
+          .put("widgets", new Table("widgets", "widgetCommonId", ORGANIZATION_ID, ORGANIZATION_ID, WIDGET_COMMON_ID))
+          .put("columns", new Table("columns", "columnId", WIDGET_COMMON_ID, ORGANIZATION_ID, WIDGET_COMMON_ID))
+          .put("cards", new Table("cards", "cardId", WIDGET_COMMON_ID, ORGANIZATION_ID, WIDGET_COMMON_ID, CARD_COMMON_ID))
+          .put("tasklists", new Table("tasklists", "taskListId", CARD_COMMON_ID, ORGANIZATION_ID, CARD_COMMON_ID))
+          .put("tasks", new Table("tasks", "taskId", CARD_COMMON_ID, ORGANIZATION_ID, CARD_COMMON_ID))
+          .put("comments", new Table("comments", "commentId", CARD_COMMON_ID, ORGANIZATION_ID, CARD_COMMON_ID))
+          .build();
+
+  private Connection mConnection;
+
+  private static Logger mLogger = LogManager.getLogger("com.datafaber.ExportDatabase");
+
+
+  /**
+   * Opens (creating it if needed) the database file "favro-export.db" in the given directory and creates the tables
+   * @param pDestDir directory where the database file will be written
+   * @throws SQLException if the database cannot be opened or initialized
+   */
+  public ExportDatabase (File pDestDir) throws SQLException {
+    Preconditions.checkNotNull(pDestDir);
+    File dbFile = new File(pDestDir, DATABASE_FILE_NAME);
+    mConnection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+    try (Statement stmt = mConnection.createStatement()) {
+      // the database is rebuilt from scratch at every export, so the rollback journal can be kept in memory; unlike WAL,
+      // this is not recorded in the file, so the exported database can later be opened from read-only media
+      stmt.execute("PRAGMA journal_mode = MEMORY");
+      // durability of each single commit is not needed either
+      stmt.execute("PRAGMA synchronous = NORMAL");
+      for (Table table : TABLES.values()) {
+        stmt.execute("CREATE TABLE IF NOT EXISTS " + table.mName + " (" +
+                "id TEXT, " +
+                ORGANIZATION_ID + " TEXT, " +
+                WIDGET_COMMON_ID + " TEXT, " +
+                CARD_COMMON_ID + " TEXT, " +
+                "json TEXT NOT NULL)");
+        for (String column : table.mIndexedColumns) {
+          stmt.execute("CREATE INDEX IF NOT EXISTS idx_" + table.mName + "_" + column + " ON " + table.mName + " (" + column + ")");
+        }
+      }
+    }
+    mConnection.setAutoCommit(false);
+    mLogger.info("Opened export database {}", dbFile.getAbsolutePath());
+  }
+
+
+  /**
+   * Checks if the given entity type is stored in the database
+   * @param pEntityType entity type, such as "cards" or "comments"
+   * @return true if there is a table for the entity type
+   */
+  public static boolean supports (String pEntityType) {
+    return TABLES.containsKey(pEntityType);
+  }
+
+
+  /**
+   * Inserts the given entities in the table for their type, with batched inserts in a single transaction
+   * @param pEntityType entity type, such as "cards" or "comments"
+   * @param pOrganizationId id of the organization owning the entities (can be null for organizations)
+   * @param pParentId id of the entity the exported entities belong to, used when the entities don't carry it themselves
+   * @param pEntities array of entities
+   * @return size in bytes (UTF-8) of the JSON stored, -1 if the entities could not be stored
+   */
+  public synchronized long insertEntities (String pEntityType, String pOrganizationId, String pParentId, JSONArray pEntities) {
+    String ctx = "insertEntities - ";
+    Preconditions.checkNotNull(pEntityType);
+    Preconditions.checkNotNull(pEntities);
+    Table table = TABLES.get(pEntityType);
+    Preconditions.checkArgument(table != null, "unsupported entity type " + pEntityType);
+
+    String sql = "INSERT INTO " + table.mName + " (id, " + ORGANIZATION_ID + ", " + WIDGET_COMMON_ID + ", " + CARD_COMMON_ID + ", json) VALUES (?, ?, ?, ?, ?)";
+    long size = 0;
+    try (PreparedStatement stmt = mConnection.prepareStatement(sql)) {
+      for (int i = 0; i < pEntities.length(); i++) {
+        JSONObject entity = pEntities.getJSONObject(i);
+        stmt.setString(1, entity.optString(table.mIdAttribute, null));
+        stmt.setString(2, entity.optString(ORGANIZATION_ID, pOrganizationId));
+        stmt.setString(3, attribute(entity, WIDGET_COMMON_ID, table, pParentId));
+        stmt.setString(4, attribute(entity, CARD_COMMON_ID, table, pParentId));
+        String json = entity.toString();
+        stmt.setString(5, json);
+        size += Utf8.encodedLength(json);
+        stmt.addBatch();
+        if ((i + 1) % BATCH_SIZE == 0) {
+          stmt.executeBatch();
+        }
+      }
+      stmt.executeBatch();
+      mConnection.commit();
+      return size;
+    } catch (SQLException sqle) {
+      mLogger.error("{}SQLException inserting {} {} for {}", ctx, pEntities.length(), pEntityType, pParentId, sqle);
+      try {
+        mConnection.rollback();
+      } catch (SQLException rbe) {
+        mLogger.error("{}SQLException rolling back the transaction", ctx, rbe);
+      }
+      return -1;
+    }
+  }
+
+
+  /**
+   * Closes the database
+   */
+  @Override
+  public synchronized void close () {
+    try {
+      mConnection.close();
+    } catch (SQLException sqle) {
+      mLogger.error("SQLException closing the export database", sqle);
+    }
+  }
+
+
+  /**
+   * Reads an id attribute from an entity, falling back to the parent id if the entity doesn't have it
+   * @param pEntity entity
+   * @param pAttribute attribute name
+   * @param pTable table where the entity will be stored
+   * @param pParentId id of the entity the exported entities belong to
+   * @return attribute value, or null if not available
+   */
+  private String attribute (JSONObject pEntity, String pAttribute, Table pTable, String pParentId) {
+    String fallback = pAttribute.equals(pTable.mParentAttribute) ? pParentId : null;
+    return pEntity.optString(pAttribute, fallback);
+  }
+
+
+  /**
+   * Describes the table for an entity type
+   */
+  private static class Table {
+    // table name
+    private final String mName;
+    // attribute holding the entity id
+    private final String mIdAttribute;
+    // attribute filled with the parent id when missing from the entity
+    private final String mParentAttribute;
+    // indexed columns
+    private final String[] mIndexedColumns;
+
+    Table (String pName, String pIdAttribute, String pParentAttribute, String... pIndexedColumns) {
+      mName = pName;
+      mIdAttribute = pIdAttribute;
+      mParentAttribute = pParentAttribute;
+      mIndexedColumns = pIndexedColumns;
+    }
+  }
+
+} // end ExportDatabase
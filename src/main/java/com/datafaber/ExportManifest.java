@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+
+/**
+ * Checksums and sizes of the files written during an export, computed while the files are written
+ */
+public class ExportManifest {
+
+  // name of the manifest file in the export directory
+  public static final String MANIFEST_FILE_NAME = "manifest.json";
+
+  private static final String HASH_ALGORITHM = "SHA-256";
+
+  // entries keyed by path relative to the export directory, kept sorted so that the manifest is stable between runs
+  private final Map<String, JSONObject> mEntries = new ConcurrentSkipListMap<>();
+
+  private static Logger mLogger = LogManager.getLogger("com.datafaber.ExportManifest");
+
+
+  /**
+   * Records a file written in the export directory
+   * @param pRelativePath path of the file relative to the export directory, with "/" as separator
+   * @param pHash SHA-256 of the file contents
+   * @param pSize size of the file in bytes
+   */
+  public void addEntry (String pRelativePath, HashCode pHash, long pSize) {
+    Preconditions.checkNotNull(pRelativePath);
+    Preconditions.checkNotNull(pHash);
+    JSONObject entry = new JSONObject();
+    entry.put("path", pRelativePath);
+    entry.put("sha256", pHash.toString());
+    entry.put("size", pSize);
+    mEntries.put(pRelativePath, entry);
+  }
+
+
+  /**
+   * Records a file already written in the export directory, reading it to compute its checksum
+   * @param pDestDir export directory
+   * @param pRelativePath path of the file relative to the export directory, with "/" as separator
+   */
+  public void addFile (File pDestDir, String pRelativePath) {
+    String ctx = "addFile - ";
+    Preconditions.checkNotNull(pDestDir);
+    Preconditions.checkNotNull(pRelativePath);
+    File file = new File(pDestDir, pRelativePath);
+    try {
+      addEntry(pRelativePath, Files.asByteSource(file).hash(Hashing.sha256()), file.length());
+    } catch (IOException ioe) {
+      mLogger.error("{}IOException computing the checksum of file {}", ctx, file.getAbsolutePath());
+    }
+  }
+
+
+  /**
+   * Writes the manifest to a file "manifest.json" in the given directory
+   * @param pDestDir export directory
+   */
+  public void writeToFile (File pDestDir) {
+    String ctx = "writeToFile - ";
+    Preconditions.checkNotNull(pDestDir);
+    JSONObject manifest = new JSONObject();
+    manifest.put("algorithm", HASH_ALGORITHM);
+    manifest.put("files", new JSONArray(mEntries.values()));
+    File manifestFile = new File(pDestDir, MANIFEST_FILE_NAME);
+    try {
+      Files.asCharSink(manifestFile, StandardCharsets.UTF_8).write(manifest.toString(2));
+      mLogger.info("{}wrote manifest with {} files to {}", ctx, mEntries.size(), manifestFile.getAbsolutePath());
+    } catch (IOException ioe) {
+      mLogger.error("{}IOException saving manifest to file {}", ctx, manifestFile.getAbsolutePath());
+    }
+  }
+
+
+  /**
+   * Checks the files of an export directory against its manifest; the files are hashed in parallel
+   * @param pDestDir export directory containing a "manifest.json" file
+   * @return descriptions of the problems found, empty if the export directory matches its manifest
+   */
+  public static List<String> verify (File pDestDir) {
+    Preconditions.checkNotNull(pDestDir);
+    File manifestFile = new File(pDestDir, MANIFEST_FILE_NAME);
+    JSONArray files;
+    try {
+      files = new JSONObject(Files.asCharSource(manifestFile, StandardCharsets.UTF_8).read()).getJSONArray("files");
+    } catch (IOException | JSONException e) {
+      return Collections.singletonList("could not read manifest " + manifestFile.getAbsolutePath() + ": " + e.getMessage());
+    }
+
+    List<JSONObject> entries = new ArrayList<>();
+    for (int i = 0; i < files.length(); i++) {
+      entries.add(files.getJSONObject(i));
+    }
+    return entries.parallelStream()
+            .map(entry -> verifyEntry(pDestDir, entry))
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+  }
+
+
+  /**
+   * Checks a single file against its manifest entry
+   * @param pDestDir export directory
+   * @param pEntry manifest entry
+   * @return description of the problem found, or null if the file matches
+   */
+  private static String verifyEntry (File pDestDir, JSONObject pEntry) {
+    String path = pEntry.getString("path");
+    File file = new File(pDestDir, path);
+    if (!file.isFile()) {
+      return path + ": missing";
+    }
+    if (file.length() != pEntry.getLong("size")) {
+      return path + ": size " + file.length() + " does not match expected size " + pEntry.getLong("size");
+    }
+    try {
+      String hash = Files.asByteSource(file).hash(Hashing.sha256()).toString();
+      if (!hash.equals(pEntry.getString("sha256"))) {
+        return path + ": checksum mismatch";
+      }
+    } catch (IOException ioe) {
+      return path + ": could not be read (" + ioe.getMessage() + ")";
+    }
+    return null;
+  }
+
+} // end ExportManifest
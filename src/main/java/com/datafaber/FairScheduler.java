@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber;
+
+import com.google.common.base.Preconditions;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.function.IntSupplier;
+
+/**
+ * Pool of worker threads shared by several accounts, which takes the next task from the accounts in round-robin order
+ *
+ * Each account has its own queue, so an account with many pending tasks cannot starve the others; an account
+ * is also never given more running tasks than its current limit (derived from its concurrency limiter), so that
+ * the workers are not held by many tasks waiting for that account's limiter while other accounts have work to do.
+ */
+public class FairScheduler {
+
+  // how long (in msecs) an idle worker waits before checking again if an account's limit has grown
+  private static final long IDLE_WAIT = 100;
+
+  // queues by account, in creation order
+  private final Map<String, AccountQueue> mQueues = new LinkedHashMap<>();
+
+  // accounts with pending tasks, in the order they will be served
+  private final Deque<AccountQueue> mReady = new ArrayDeque<>();
+
+  private boolean mShutdown;
+
+  private static Logger mLogger = LogManager.getLogger("com.datafaber.FairScheduler");
+
+
+  /**
+   * Starts the worker threads
+   * @param pWorkers number of worker threads
+   */
+  public FairScheduler (int pWorkers) {
+    Preconditions.checkArgument(pWorkers >= 1, "the number of workers must be at least 1");
+    for (int i = 0; i < pWorkers; i++) {
+      Thread worker = new Thread(this::runWorker, "favro-export-" + i);
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+
+  /**
+   * Returns an executor that queues its tasks under the given account
+   * @param pAccount account name
+   * @param pMaxRunning maximum number of tasks of the account that may run at the same time (evaluated at every scheduling decision)
+   * @return executor for the account
+   */
+  public synchronized Executor executorFor (String pAccount, IntSupplier pMaxRunning) {
+    Preconditions.checkNotNull(pAccount);
+    Preconditions.checkNotNull(pMaxRunning);
+    Preconditions.checkState(!mQueues.containsKey(pAccount), "an executor already exists for account " + pAccount);
+    AccountQueue queue = new AccountQueue(pMaxRunning);
+    mQueues.put(pAccount, queue);
+    return task -> submit(queue, task);
+  }
+
+
+  /**
+   * Stops the workers once the queued tasks have been run
+   */
+  public synchronized void shutdown () {
+    mShutdown = true;
+    notifyAll();
+  }
+
+
+  /**
+   * Queues a task under an account
+   * @param pQueue account queue
+   * @param pTask task to run
+   */
+  private synchronized void submit (AccountQueue pQueue, Runnable pTask) {
+    Preconditions.checkNotNull(pTask);
+    Preconditions.checkState(!mShutdown, "the scheduler has been shut down");
+    if (pQueue.mTasks.isEmpty()) {
+      mReady.addLast(pQueue);
+    }
+    pQueue.mTasks.addLast(() -> {
+      try {
+        pTask.run();
+      } finally {
+        done(pQueue);
+      }
+    });
+    notifyAll();
+  }
+
+
+  /**
+   * Waits for the next task to run, serving the accounts in round-robin order
+   * @return task to run, or null if the scheduler has been shut down
+   */
+  private synchronized Runnable take () {
+    while (true) {
+      for (int i = 0, ready = mReady.size(); i < ready; i++) {
+        AccountQueue queue = mReady.pollFirst();
+        if (queue.mRunning < Math.max(1, queue.mMaxRunning.getAsInt())) {
+          Runnable task = queue.mTasks.pollFirst();
+          queue.mRunning++;
+          if (!queue.mTasks.isEmpty()) {
+            mReady.addLast(queue);
+          }
+          return task;
+        }
+        // the account is at its limit, try the next one
+        mReady.addLast(queue);
+      }
+      if (mShutdown && mReady.isEmpty()) {
+        return null;
+      }
+      try {
+        wait(IDLE_WAIT);
+      } catch (InterruptedException ie) {
+        return null;
+      }
+    }
+  }
+
+
+  /**
+   * Marks a task of an account as done
+   * @param pQueue account queue
+   */
+  private synchronized void done (AccountQueue pQueue) {
+    pQueue.mRunning--;
+    notifyAll();
+  }
+
+
+  /**
+   * Main loop of a worker thread
+   */
+  private void runWorker () {
+    Runnable task;
+    while ((task = take()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException re) {
+        mLogger.error("Unexpected exception running an export task", re);
+      }
+    }
+  }
+
+
+  /**
+   * Pending tasks of an account
+   */
+  private static class AccountQueue {
+    private final Deque<Runnable> mTasks = new ArrayDeque<>();
+    private final IntSupplier mMaxRunning;
+    private int mRunning;
+
+    AccountQueue (IntSupplier pMaxRunning) {
+      mMaxRunning = pMaxRunning;
+    }
+  }
+
+} // end FairScheduler
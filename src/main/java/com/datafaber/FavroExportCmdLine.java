@@ -16,16 +16,28 @@
 
 package com.datafaber;
 
+import com.datafaber.model.FavroAccount;
 import com.datafaber.model.FavroExportStatus;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mashape.unirest.http.Unirest;
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.*;
 import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Main entry point
@@ -34,6 +46,9 @@ public class FavroExportCmdLine {
 
   // invocation example:
   //   FavroExportCmdLine -c <configuration file> -d <destination folder>
+  // (when the configuration lists several accounts, each one is exported to its own subfolder of the destination folder)
+  // or, to check a previous export against its manifest:
+  //   FavroExportCmdLine --verify -d <destination folder>
   // see https://favro.com/developer/ for the favro api
 
   // property names in the configuration file
@@ -41,6 +56,28 @@ public class FavroExportCmdLine {
   private static final String FAVRO_USER = "favro.user";
   private static final String FAVRO_API_TOKEN = "favro.api.token";
 
+  // property names for exporting several accounts: favro.accounts lists the account names, and each account
+  // has its own favro.account.name.user, favro.account.name.api.token and (optionally) favro.account.name.base.url
+  private static final String FAVRO_ACCOUNTS = "favro.accounts";
+  private static final String FAVRO_ACCOUNT_PREFIX = "favro.account.";
+  private static final String FAVRO_BASE_URL_SUFFIX = "base.url";
+  private static final String FAVRO_USER_SUFFIX = "user";
+  private static final String FAVRO_API_TOKEN_SUFFIX = "api.token";
+
+  // account names are used as directory names, so they must not be "." or ".."
+  private static final String ACCOUNT_NAME_PATTERN = "[A-Za-z0-9][A-Za-z0-9._-]*";
+
+  // values of the --sink argument
+  private static final String SINK_JSON = "json";
+  private static final String SINK_SQLITE = "sqlite";
+
+  // default maximum number of concurrent requests
+  private static final int DEFAULT_MAX_CONCURRENCY = 8;
+
+  // tasks an account may run on the shared workers, for each request it may send concurrently: the tasks also spend
+  // time writing files and downloading attachments, and the limiter only grows when its permits are all in use
+  private static final int TASKS_PER_REQUEST = 2;
+
   private static Logger mLogger = LogManager.getLogger("com.datafaber.FavroExportCmdLine");
 
 
@@ -49,29 +86,89 @@ public class FavroExportCmdLine {
    * @param pArgs command line arguments
    */
   public static void main (String[] pArgs) {
-    mLogger.info("Starting export");
 
     // parse command line arguments and return errors if needed
-    String destinationFolderPath = "", configurationFilePath = "";
+    String destinationFolderPath = "", configurationFilePath = "", sink = SINK_JSON;
+    int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    Integer workers = null;
+    double hedgePercentile = 0;
+    long deadline = 0;
+    boolean verify = false;
     ArgumentParser parser = ArgumentParsers.newFor("FavroExport").build()
             .defaultHelp(true)
             .description("Exports your organizations' data from Favro into local files");
     parser.addArgument("-c", "--configuration")
             .type(String.class)
-            .required(true);
+            .help("configuration file (required unless --verify is given)");
     parser.addArgument("-d", "--destination")
             .type(String.class)
             .required(true);
+    parser.addArgument("-s", "--sink")
+            .choices(SINK_JSON, SINK_SQLITE)
+            .setDefault(SINK_JSON)
+            .help("where to store the exported entities: one JSON file per entity list, or a single SQLite database \""
+                    + ExportDatabase.DATABASE_FILE_NAME + "\" in the destination directory");
+    parser.addArgument("--max-concurrency")
+            .type(Integer.class)
+            .setDefault(DEFAULT_MAX_CONCURRENCY)
+            .help("maximum number of concurrent requests to the Favro API; the actual number adapts to the API latency and throttling");
+    parser.addArgument("--workers")
+            .type(Integer.class)
+            .help("number of worker threads shared by all the accounts (default: the maximum concurrency times the number of accounts)");
+    parser.addArgument("--hedge-percentile")
+            .type(Double.class)
+            .help("send a duplicate of any request running longer than this percentile (between 50 and 100) of the recent latencies of its endpoint, and keep the first answer");
+    parser.addArgument("--deadline")
+            .type(Integer.class)
+            .metavar("MINUTES")
+            .help("end the export within this number of minutes: the listings are exported first, then the task lists, tasks and comments of the most recently updated cards, then the attachments; whatever is left is listed in skipped.json");
+    parser.addArgument("--verify")
+            .action(Arguments.storeTrue())
+            .help("check the destination directory against the manifest written by a previous export");
     try {
       Namespace ns = parser.parseArgs(pArgs);
       destinationFolderPath = ns.getString("destination");
       configurationFilePath = ns.getString("configuration");
+      sink = ns.getString("sink");
+      maxConcurrency = ns.getInt("max_concurrency");
+      if (maxConcurrency < 1) {
+        throw new ArgumentParserException("argument --max-concurrency must be at least 1", parser);
+      }
+      workers = ns.getInt("workers");
+      if (workers != null && workers < 1) {
+        throw new ArgumentParserException("argument --workers must be at least 1", parser);
+      }
+      if (ns.getDouble("hedge_percentile") != null) {
+        hedgePercentile = ns.getDouble("hedge_percentile");
+        if (hedgePercentile < 50 || hedgePercentile >= 100) {
+          throw new ArgumentParserException("argument --hedge-percentile must be between 50 and 100", parser);
+        }
+      }
+      if (ns.getInt("deadline") != null) {
+        if (ns.getInt("deadline") < 1) {
+          throw new ArgumentParserException("argument --deadline must be at least 1 minute", parser);
+        }
+        deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(ns.getInt("deadline"));
+      }
+      verify = ns.getBoolean("verify");
+      if (!verify && configurationFilePath == null) {
+        throw new ArgumentParserException("argument -c/--configuration is required", parser);
+      }
     } catch (ArgumentParserException ape) {
       parser.handleError(ape);
       System.exit(-1);
     }
 
-    // empty the destination directory
+    if (verify) {
+      if (!verifyExport(new File(destinationFolderPath))) {
+        System.exit(1);
+      }
+      return;
+    }
+
+    mLogger.info("Starting export");
+
+    // empty the destination directory (except for the partial attachment downloads)
     File destDir = new File(destinationFolderPath);
     if (!destDir.exists()) {
       boolean dirok = destDir.mkdirs();
@@ -81,7 +178,7 @@ public class FavroExportCmdLine {
       }
     }
     try {
-      FileUtils.cleanDirectory(destDir);
+      cleanDestination(destDir);
     } catch (IOException ioe) {
       mLogger.error("Could not clean the destination directory " + destDir.getAbsolutePath(), ioe);
       return;
@@ -89,39 +186,193 @@ public class FavroExportCmdLine {
 
     // read the configuration
     File configFile = new File(configurationFilePath);
-    Properties config = readConfiguration(configFile);
-    String favroBaseUrl = config.getProperty(FAVRO_BASE_URL);
-    String favroUser = config.getProperty(FAVRO_USER);
-    String favroApiToken = config.getProperty(FAVRO_API_TOKEN);
-
-    FavroExportStatus status = new FavroExportStatus(favroBaseUrl, favroUser, favroApiToken);
-    FavroExporter favroExporter = new FavroExporter(status);
-
-    // start exporting from the organizations
-    List<String> organizationIds = favroExporter.exportOrganizations(destDir);
-    if (organizationIds != null && organizationIds.size() > 0) {
-      for (String organizationId : organizationIds) {
-        favroExporter.exportUsers(destDir, organizationId);
-        favroExporter.exportCollections(destDir, organizationId);
-        favroExporter.exportTags(destDir, organizationId);
-        List<String> widgetCommonIds = favroExporter.exportWidgets(destDir, organizationId);
-        for (String widgetCommonId : widgetCommonIds) {
-          favroExporter.exportColumns(destDir, organizationId, widgetCommonId);
-          favroExporter.exportCards(destDir, organizationId, widgetCommonId);
-        }
+    List<FavroAccount> accounts = readConfiguration(configFile);
+
+    // all the accounts share the same workers; by default there are enough of them for every account to reach its maximum concurrency
+    int workerCount = (workers != null) ? workers : maxConcurrency * accounts.size();
+    // make sure the HTTP client pool has a connection for each concurrent request, and for its duplicate if hedging
+    int connections = (hedgePercentile > 0) ? 2 * workerCount : workerCount;
+    Unirest.setConcurrency(Math.max(200, connections), Math.max(20, connections));
+    FairScheduler scheduler = new FairScheduler(workerCount);
+
+    // each account is exported from its own thread, while the cards' data is exported on the shared workers
+    ExecutorService accountThreads = Executors.newFixedThreadPool(accounts.size(),
+            new ThreadFactoryBuilder().setNameFormat("favro-account-%d").setDaemon(true).build());
+    List<CompletableFuture<Void>> accountExports = new ArrayList<>();
+    for (FavroAccount account : accounts) {
+      final String finalSink = sink;
+      final int finalMaxConcurrency = maxConcurrency;
+      final double finalHedgePercentile = hedgePercentile;
+      final long finalDeadline = deadline;
+      accountExports.add(CompletableFuture.runAsync(
+              () -> exportAccount(account, destDir, finalSink, scheduler, finalMaxConcurrency, finalHedgePercentile, finalDeadline), accountThreads));
+    }
+    for (int i = 0; i < accounts.size(); i++) {
+      try {
+        accountExports.get(i).join();
+      } catch (CompletionException ce) {
+        mLogger.error("Export of account " + accounts.get(i).getName() + " failed", ce.getCause());
       }
     }
+    accountThreads.shutdown();
+    scheduler.shutdown();
+    try {
+      Unirest.shutdown();
+    } catch (IOException ioe) {
+      mLogger.error("Could not shut down the HTTP client", ioe);
+    }
 
     mLogger.info("End export");
   }
 
 
+  /**
+   * Exports all the data of an account, to the account's subdirectory of the destination directory when exporting several accounts
+   * @param pAccount account to export
+   * @param pDestDir destination directory
+   * @param pSink value of the --sink argument
+   * @param pScheduler scheduler running the export of the cards' data
+   * @param pMaxConcurrency maximum number of concurrent requests for the account
+   * @param pHedgePercentile percentile of the latency after which a request is hedged (zero to disable hedging)
+   * @param pDeadline time (in msecs since the epoch) by which the export must end, zero for no deadline
+   */
+  private static void exportAccount (FavroAccount pAccount, File pDestDir, String pSink, FairScheduler pScheduler,
+                                     int pMaxConcurrency, double pHedgePercentile, long pDeadline) {
+    Preconditions.checkNotNull(pAccount);
+    Preconditions.checkNotNull(pDestDir);
+    String ctx = pAccount.getName().isEmpty() ? "" : "[" + pAccount.getName() + "] ";
+    File destDir = pAccount.getName().isEmpty() ? pDestDir : new File(pDestDir, pAccount.getName());
+    if (!destDir.isDirectory() && !destDir.mkdirs()) {
+      mLogger.error(ctx + "Could not create the destination directory " + destDir.getAbsolutePath());
+      return;
+    }
+    mLogger.info(ctx + "Starting export to " + destDir.getAbsolutePath());
+
+    ExportDatabase database = null;
+    if (SINK_SQLITE.equals(pSink)) {
+      try {
+        database = new ExportDatabase(destDir);
+      } catch (SQLException sqle) {
+        mLogger.error(ctx + "Could not create the export database in " + destDir.getAbsolutePath(), sqle);
+        return;
+      }
+    }
+
+    // the account may run on the shared workers a few more tasks than it may send concurrent requests, so that
+    // the concurrency limit can grow, but never more than the maximum concurrency
+    FavroExportStatus status = new FavroExportStatus(pAccount.getFavroBaseUrl(), pAccount.getFavroUser(), pAccount.getFavroApiToken());
+    Executor executor = pScheduler.executorFor(pAccount.getName(),
+            () -> Math.min(pMaxConcurrency, TASKS_PER_REQUEST * status.getMetrics().getConcurrencyLimit()));
+    FavroExporter favroExporter = new FavroExporter(status, database, executor, pMaxConcurrency);
+    favroExporter.setHedgePercentile(pHedgePercentile);
+    favroExporter.setDeadline(pDeadline);
+
+    try {
+      // start exporting from the organizations
+      List<String> organizationIds = favroExporter.exportOrganizations(destDir);
+      if (organizationIds != null && organizationIds.size() > 0) {
+        for (String organizationId : organizationIds) {
+          favroExporter.exportUsers(destDir, organizationId);
+          favroExporter.exportCollections(destDir, organizationId);
+          favroExporter.exportTags(destDir, organizationId);
+          List<String> widgetCommonIds = favroExporter.exportWidgets(destDir, organizationId);
+          for (String widgetCommonId : widgetCommonIds) {
+            favroExporter.exportColumns(destDir, organizationId, widgetCommonId);
+            favroExporter.exportCards(destDir, organizationId, widgetCommonId);
+          }
+        }
+      }
+      favroExporter.exportPendingCardData(destDir);
+      favroExporter.writeSkippedReport(destDir);
+      favroExporter.removeStalePartialDownloads(destDir);
+    } finally {
+      if (database != null) {
+        database.close();
+      }
+    }
+    // written after closing the database, so that the database file can be checksummed too
+    favroExporter.writeManifest(destDir);
+
+    mLogger.info(ctx + "Export metrics: " + status.getMetrics());
+    mLogger.info(ctx + "End export");
+  }
+
+
+  /**
+   * Empties the destination directory, keeping only the directories of the partial attachment downloads, so that they
+   * can be resumed (the partial downloads of attachments that are not exported anymore are deleted at the end of the export)
+   * @param pDir directory to clean
+   * @throws IOException if a file or directory cannot be deleted
+   */
+  private static void cleanDestination (File pDir) throws IOException {
+    File[] files = pDir.listFiles();
+    if (files == null) {
+      throw new IOException("Could not list the contents of " + pDir.getAbsolutePath());
+    }
+    for (File file : files) {
+      if (FileUtils.isSymlink(file)) {
+        FileUtils.forceDelete(file);
+      } else if (file.isDirectory() && AttachmentDownloader.PARTIAL_DIR_NAME.equals(file.getName())) {
+        // kept as it is, the downloads in progress are resumed by this export
+      } else if (file.isDirectory()) {
+        cleanDestination(file);
+        String[] remaining = file.list();
+        if (remaining != null && remaining.length == 0) {
+          FileUtils.forceDelete(file);
+        }
+      } else {
+        FileUtils.forceDelete(file);
+      }
+    }
+  }
+
+
+  /**
+   * Checks an export directory against its manifest, or each account's subdirectory against its own manifest
+   * if several accounts were exported
+   * @param pDestDir export directory
+   * @return true if all the files in the manifests are present and match their checksums
+   */
+  private static boolean verifyExport (File pDestDir) {
+    Preconditions.checkNotNull(pDestDir);
+    List<File> exportDirs = new ArrayList<>();
+    if (new File(pDestDir, ExportManifest.MANIFEST_FILE_NAME).exists()) {
+      exportDirs.add(pDestDir);
+    } else {
+      File[] subDirs = pDestDir.listFiles(file -> new File(file, ExportManifest.MANIFEST_FILE_NAME).exists());
+      if (subDirs != null) {
+        exportDirs.addAll(Arrays.asList(subDirs));
+      }
+    }
+    if (exportDirs.isEmpty()) {
+      mLogger.error("No manifest found in " + pDestDir.getAbsolutePath());
+      return false;
+    }
+
+    int problemCount = 0;
+    for (File exportDir : exportDirs) {
+      mLogger.info("Verifying export in " + exportDir.getAbsolutePath());
+      List<String> problems = ExportManifest.verify(exportDir);
+      for (String problem : problems) {
+        mLogger.error("Verification failed: " + problem);
+      }
+      problemCount += problems.size();
+    }
+    mLogger.info("End verification, " + problemCount + " problems found");
+    return problemCount == 0;
+  }
+
+
   /**
    * Reads and validates the given configuration
+   *
+   * The configuration either has the credentials of a single account in the favro.user and favro.api.token properties,
+   * or lists several account names in the favro.accounts property, with the credentials of each account in the
+   * favro.account.name.user and favro.account.name.api.token properties (favro.account.name.base.url is optional)
    * @param pConfigurationFile configuration file
-   * @return configuration
+   * @return accounts to export
    */
-  private static Properties readConfiguration (File pConfigurationFile) {
+  private static List<FavroAccount> readConfiguration (File pConfigurationFile) {
     Preconditions.checkNotNull(pConfigurationFile);
     Properties config = new Properties();
     try (FileInputStream fis = FileUtils.openInputStream(pConfigurationFile)) {
@@ -130,14 +381,44 @@ public class FavroExportCmdLine {
       mLogger.error("Could not read the configuration file " + pConfigurationFile.getAbsolutePath(), ioe);
     }
 
+    List<FavroAccount> accounts = new ArrayList<>();
+    String accountNames = config.getProperty(FAVRO_ACCOUNTS);
+    if (null == accountNames) {
+      accounts.add(new FavroAccount("", config.getProperty(FAVRO_BASE_URL), config.getProperty(FAVRO_USER), config.getProperty(FAVRO_API_TOKEN)));
+    } else {
+      for (String name : Splitter.on(',').trimResults().omitEmptyStrings().split(accountNames)) {
+        String prefix = FAVRO_ACCOUNT_PREFIX + name + ".";
+        accounts.add(new FavroAccount(name,
+                config.getProperty(prefix + FAVRO_BASE_URL_SUFFIX, config.getProperty(FAVRO_BASE_URL)),
+                config.getProperty(prefix + FAVRO_USER_SUFFIX),
+                config.getProperty(prefix + FAVRO_API_TOKEN_SUFFIX)));
+      }
+    }
+
     // validate the configuration file
     boolean configValid = true;
-    if (null == config.getProperty(FAVRO_BASE_URL)) {
-      mLogger.error("The configuration file is missing the " + FAVRO_BASE_URL + " property");
-      configValid = false;
+    Set<String> names = new HashSet<>();
+    for (FavroAccount account : accounts) {
+      String prefix = account.getName().isEmpty() ? "favro." : FAVRO_ACCOUNT_PREFIX + account.getName() + ".";
+      if (!account.getName().isEmpty() && !account.getName().matches(ACCOUNT_NAME_PATTERN)) {
+        mLogger.error("The account name " + account.getName() + " must start with a letter or a digit, and may only contain letters, digits, '.', '-' and '_'");
+        configValid = false;
+      }
+      if (!names.add(account.getName())) {
+        mLogger.error("The account " + account.getName() + " is listed more than once");
+        configValid = false;
+      }
+      if (null == account.getFavroBaseUrl()) {
+        mLogger.error("The configuration file is missing the " + FAVRO_BASE_URL + " property");
+        configValid = false;
+      }
+      if (null == account.getFavroApiToken()) {
+        mLogger.error("The configuration file is missing the " + prefix + FAVRO_API_TOKEN_SUFFIX + " property");
+        configValid = false;
+      }
     }
-    if (null == config.getProperty(FAVRO_API_TOKEN)) {
-      mLogger.error("The configuration file is missing the " + FAVRO_API_TOKEN + " property");
+    if (accounts.isEmpty()) {
+      mLogger.error("The " + FAVRO_ACCOUNTS + " property doesn't list any account");
       configValid = false;
     }
 
@@ -145,7 +426,7 @@ public class FavroExportCmdLine {
       throw new RuntimeException("Invalid configuration");
     }
 
-    return config;
+    return accounts;
   }
 
 } // end FavroExportCmdLine
@@ -19,23 +19,32 @@ package com.datafaber;
 import com.datafaber.model.FavroExportStatus;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.http.async.Callback;
 import com.mashape.unirest.http.exceptions.UnirestException;
 import com.mashape.unirest.request.HttpRequest;
-import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.io.*;
+import java.net.URI;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Export handler
@@ -48,14 +57,112 @@ public class FavroExporter {
   private static final String FAVRO_RATE_LIMIT_REMAINING_HEADER = "X-RateLimit-Remaining";
   private static final String FAVRO_RATE_LIMIT_RESET = "X-RateLimit-Reset";
 
+  // status code returned by the Favro API when the rate limits are exceeded
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  // name of the report of the data skipped because of the deadline
+  private static final String SKIPPED_REPORT_FILE_NAME = "skipped.json";
+
+  // types of the skipped lists that leave some attachments unknown
+  private static final Set<String> ATTACHMENT_LISTING_TYPES = new HashSet<>(Arrays.asList("organizations", "widgets", "cards"));
+
+  // card attributes holding the time of the last change, in order of preference
+  private static final String[] CARD_UPDATE_TIME_ATTRIBUTES = { "updatedAt", "lastUpdated", "createdAt" };
+
+  // minimum time (in msecs) before a slow request is hedged
+  private static final long MIN_HEDGE_DELAY = 50;
+
+  // fraction of the rate limit budget that must remain for a slow request to be hedged
+  private static final double HEDGE_MIN_RATE_LIMIT_FRACTION = 0.1;
+
   // status object
   private FavroExportStatus mStatus;
 
+  // checksums of the files written during the export
+  private ExportManifest mManifest = new ExportManifest();
+
+  // downloads the attachments
+  private AttachmentDownloader mDownloader = new AttachmentDownloader();
+
+  // database where the entities are stored instead of the JSON files (null to write JSON files)
+  private ExportDatabase mDatabase;
+
+  // executor running the export of the cards' data
+  private Executor mExecutor;
+
+  // limits the number of concurrent requests to the Favro API
+  private AdaptiveConcurrencyLimiter mLimiter;
+
+  // latencies of the recent requests, by endpoint
+  private LatencyTracker mLatencies = new LatencyTracker();
+
+  // percentile of the latency after which a request is hedged (zero to disable hedging)
+  private double mHedgePercentile;
+
+  // time (in msecs since the epoch) by which the export must end, zero if there is no deadline
+  private long mDeadline;
+
+  // cards whose data is exported after all the listings when there is a deadline, by card common id
+  private final Map<String, PendingCard> mPendingCards = new LinkedHashMap<>();
+
+  // data skipped because the deadline was reached
+  private final List<JSONObject> mSkipped = new ArrayList<>();
+
+  // paths (relative to the export directory) of the attachments listed in this export, downloaded or not
+  private final Set<String> mAttachmentPaths = ConcurrentHashMap.newKeySet();
+
   private static Logger mLogger = LogManager.getLogger("com.datafaber.FavroExporter");
 
+  // audit trail of the exported data, written to its own file (see log4j2.xml)
+  private static Logger mEventLogger = LogManager.getLogger("com.datafaber.ExportEvents");
+
 
   public FavroExporter (FavroExportStatus pStatus) {
+    this(pStatus, null);
+  }
+
+
+  public FavroExporter (FavroExportStatus pStatus, ExportDatabase pDatabase) {
+    this(pStatus, pDatabase, MoreExecutors.directExecutor(), 1);
+  }
+
+
+  /**
+   * @param pStatus status object
+   * @param pDatabase database where the entities are stored (null to write JSON files)
+   * @param pExecutor executor running the export of the cards' data
+   * @param pMaxConcurrency maximum number of concurrent requests to the Favro API
+   */
+  public FavroExporter (FavroExportStatus pStatus, ExportDatabase pDatabase, Executor pExecutor, int pMaxConcurrency) {
+    Preconditions.checkNotNull(pStatus);
+    Preconditions.checkNotNull(pExecutor);
     mStatus = pStatus;
+    mDatabase = pDatabase;
+    mExecutor = pExecutor;
+    mLimiter = new AdaptiveConcurrencyLimiter(pMaxConcurrency, pStatus.getMetrics());
+  }
+
+
+  /**
+   * Enables hedged requests: a request running longer than the given percentile of the recent latencies of its
+   * endpoint is sent again, and the first answer is kept
+   * @param pHedgePercentile percentile, between 50 and 100 (zero to disable hedging)
+   */
+  public void setHedgePercentile (double pHedgePercentile) {
+    Preconditions.checkArgument(pHedgePercentile == 0 || (pHedgePercentile >= 50 && pHedgePercentile < 100),
+            "the hedge percentile must be between 50 and 100");
+    mHedgePercentile = pHedgePercentile;
+  }
+
+
+  /**
+   * Sets a deadline for the export: the cards' data is then exported after all the listings, the most recently updated
+   * cards first, and whatever has not been exported when the deadline is reached is skipped
+   * @param pDeadline time (in msecs since the epoch) by which the export must end, zero for no deadline
+   */
+  public void setDeadline (long pDeadline) {
+    mDeadline = pDeadline;
+    mDownloader.setDeadline(pDeadline);
   }
 
 
@@ -69,16 +176,23 @@ public class FavroExporter {
     Preconditions.checkNotNull(pDestDir);
     List<String> result = new ArrayList<>();
 
+    if (skipIfPastDeadline("organizations", null, null)) {
+      return result;
+    }
+
+    long start = System.currentTimeMillis();
     JSONArray organizations = getEntities(mStatus.getFavroBaseUrl() + "/organizations");
     if (organizations != null) {
-      saveJsonToFile(pDestDir, "organizations.json", organizations);
-      mLogger.info(ctx + "exported " + organizations.length() + " organizations");
+      saveEntities(pDestDir, "organizations", null, null, organizations, start);
+      mLogger.info("{}exported {} organizations", ctx, organizations.length());
       for (int i = 0; i < organizations.length(); i++) {
         JSONObject organization = (JSONObject)organizations.get(i);
         if (organization != null) {
           result.add(organization.getString("organizationId"));
         }
       }
+    } else {
+      addSkipped("organizations", null, null);
     }
     return result;
   }
@@ -94,10 +208,17 @@ public class FavroExporter {
     Preconditions.checkNotNull(pDestDir);
     Preconditions.checkNotNull(pOrganizationId);
 
+    if (skipIfPastDeadline("users", pOrganizationId, pOrganizationId)) {
+      return;
+    }
+
+    long start = System.currentTimeMillis();
     JSONArray users = getEntities(mStatus.getFavroBaseUrl() + "/users", pOrganizationId);
     if (users != null) {
-      saveJsonToFile(pDestDir, "users-" + pOrganizationId + ".json", users);
-      mLogger.info(ctx + "exported " + users.length() + " users");
+      saveEntities(pDestDir, "users", pOrganizationId, pOrganizationId, users, start);
+      mLogger.info("{}exported {} users", ctx, users.length());
+    } else {
+      addSkipped("users", pOrganizationId, pOrganizationId);
     }
   }
 
@@ -112,10 +233,17 @@ public class FavroExporter {
     Preconditions.checkNotNull(pDestDir);
     Preconditions.checkNotNull(pOrganizationId);
 
+    if (skipIfPastDeadline("collections", pOrganizationId, pOrganizationId)) {
+      return;
+    }
+
+    long start = System.currentTimeMillis();
     JSONArray collections = getEntities(mStatus.getFavroBaseUrl() + "/collections", pOrganizationId);
     if (collections != null) {
-      saveJsonToFile(pDestDir, "collections-" + pOrganizationId + ".json", collections);
-      mLogger.info(ctx + "exported " + collections.length() + " collections");
+      saveEntities(pDestDir, "collections", pOrganizationId, pOrganizationId, collections, start);
+      mLogger.info("{}exported {} collections", ctx, collections.length());
+    } else {
+      addSkipped("collections", pOrganizationId, pOrganizationId);
     }
   }
 
@@ -130,10 +258,17 @@ public class FavroExporter {
     Preconditions.checkNotNull(pDestDir);
     Preconditions.checkNotNull(pOrganizationId);
 
+    if (skipIfPastDeadline("tags", pOrganizationId, pOrganizationId)) {
+      return;
+    }
+
+    long start = System.currentTimeMillis();
     JSONArray tags = getEntities(mStatus.getFavroBaseUrl() + "/tags", pOrganizationId);
     if (tags != null) {
-      saveJsonToFile(pDestDir, "tags-" + pOrganizationId + ".json", tags);
-      mLogger.info(ctx + "exported " + tags.length() + " tags");
+      saveEntities(pDestDir, "tags", pOrganizationId, pOrganizationId, tags, start);
+      mLogger.info("{}exported {} tags", ctx, tags.length());
+    } else {
+      addSkipped("tags", pOrganizationId, pOrganizationId);
     }
   }
 
@@ -150,16 +285,23 @@ public class FavroExporter {
     Preconditions.checkNotNull(pOrganizationId);
     List<String> result = new ArrayList<>();
 
+    if (skipIfPastDeadline("widgets", pOrganizationId, pOrganizationId)) {
+      return result;
+    }
+
+    long start = System.currentTimeMillis();
     JSONArray widgets = getEntities(mStatus.getFavroBaseUrl() + "/widgets", pOrganizationId);
     if (widgets != null) {
-      saveJsonToFile(pDestDir, "widgets-" + pOrganizationId + ".json", widgets);
-      mLogger.info(ctx + "exported " + widgets.length() + " widgets");
+      saveEntities(pDestDir, "widgets", pOrganizationId, pOrganizationId, widgets, start);
+      mLogger.info("{}exported {} widgets", ctx, widgets.length());
       for (int i = 0; i < widgets.length(); i++) {
         JSONObject widget = (JSONObject)widgets.get(i);
         if (widget != null) {
           result.add(widget.getString("widgetCommonId"));
         }
       }
+    } else {
+      addSkipped("widgets", pOrganizationId, pOrganizationId);
     }
     return result;
   }
@@ -177,10 +319,17 @@ public class FavroExporter {
     Preconditions.checkNotNull(pOrganizationId);
     Preconditions.checkNotNull(pWidgetCommonId);
 
+    if (skipIfPastDeadline("columns", pOrganizationId, pWidgetCommonId)) {
+      return;
+    }
+
+    long start = System.currentTimeMillis();
     JSONArray columns = getEntities(mStatus.getFavroBaseUrl() + "/columns?widgetCommonId=" + pWidgetCommonId, pOrganizationId);
     if (columns != null) {
-      saveJsonToFile(pDestDir, "columns-" + pWidgetCommonId + ".json", columns);
-      mLogger.info(ctx + "exported " + columns.length() + " columns for widget " + pWidgetCommonId);
+      saveEntities(pDestDir, "columns", pOrganizationId, pWidgetCommonId, columns, start);
+      mLogger.info("{}exported {} columns for widget {}", ctx, columns.length(), pWidgetCommonId);
+    } else {
+      addSkipped("columns", pOrganizationId, pWidgetCommonId);
     }
   }
 
@@ -197,17 +346,181 @@ public class FavroExporter {
     Preconditions.checkNotNull(pOrganizationId);
     Preconditions.checkNotNull(pWidgetCommonId);
 
+    if (skipIfPastDeadline("cards", pOrganizationId, pWidgetCommonId)) {
+      return;
+    }
+
+    long start = System.currentTimeMillis();
     JSONArray cards = getEntities(mStatus.getFavroBaseUrl() + "/cards?widgetCommonId=" + pWidgetCommonId, pOrganizationId);
     if (cards != null) {
-      saveJsonToFile(pDestDir, "cards-" + pWidgetCommonId + ".json", cards);
-      mLogger.info(ctx + "exported " + cards.length() + " cards for widget " + pWidgetCommonId);
-      exportCardData(pDestDir, pOrganizationId, cards);
+      saveEntities(pDestDir, "cards", pOrganizationId, pWidgetCommonId, cards, start);
+      mLogger.info("{}exported {} cards for widget {}", ctx, cards.length(), pWidgetCommonId);
+      if (mDeadline > 0) {
+        addPendingCards(pOrganizationId, cards);
+      } else {
+        exportCardData(pDestDir, pOrganizationId, cards);
+      }
+    } else {
+      addSkipped("cards", pOrganizationId, pWidgetCommonId);
+    }
+  }
+
+
+  /**
+   * When there is a deadline, exports the data of the cards found by the previous calls to exportCards: first the task lists,
+   * tasks and comments, then the attachments, each in order of the most recently updated cards. The cards not reached
+   * before the deadline are skipped and listed in the report written by writeSkippedReport.
+   * @param pDestDir directory where to write the exported data
+   */
+  public void exportPendingCardData (File pDestDir) {
+    String ctx = "exportPendingCardData - ";
+    Preconditions.checkNotNull(pDestDir);
+    List<PendingCard> cards;
+    synchronized (mPendingCards) {
+      cards = new ArrayList<>(mPendingCards.values());
+      mPendingCards.clear();
     }
+    if (cards.isEmpty()) {
+      return;
+    }
+    cards.sort((card1, card2) -> Long.compare(card2.mUpdateTime, card1.mUpdateTime));
+    mLogger.info("{}exporting the data of {} cards, most recently updated first", ctx, cards.size());
+
+    runForEachCard(cards, card -> {
+      if (isPastDeadline()) {
+        if (card.mCard.optInt("tasksTotal") > 0) {
+          addSkipped("tasklists", card.mOrganizationId, card.mCardCommonId);
+          addSkipped("tasks", card.mOrganizationId, card.mCardCommonId);
+        }
+        if (card.mCard.optInt("numComments") > 0) {
+          addSkipped("comments", card.mOrganizationId, card.mCardCommonId);
+        }
+      } else {
+        exportTaskListsAndTasks(pDestDir, card.mOrganizationId, card.mCard);
+        exportComments(pDestDir, card.mOrganizationId, card.mCard);
+      }
+    });
+
+    runForEachCard(cards, card -> downloadAttachments(pDestDir, card.mCardCommonId, card.mCard.getJSONArray("attachments")));
+  }
+
+
+  /**
+   * When there is a deadline, writes the list of the data skipped because the deadline was reached to a file "skipped.json" in the given directory
+   * @param pDestDir directory where the exported data was written
+   */
+  public void writeSkippedReport (File pDestDir) {
+    Preconditions.checkNotNull(pDestDir);
+    if (mDeadline > 0) {
+      JSONArray skipped;
+      synchronized (mSkipped) {
+        skipped = new JSONArray(mSkipped);
+      }
+      saveJsonToFile(pDestDir, SKIPPED_REPORT_FILE_NAME, skipped);
+      if (skipped.length() > 0) {
+        mLogger.warn("The deadline was reached, {} items were not exported (see {})", skipped.length(), SKIPPED_REPORT_FILE_NAME);
+      } else {
+        mLogger.info("The export completed before the deadline");
+      }
+    }
+  }
+
+
+  /**
+   * Remembers the given cards, whose data will be exported by exportPendingCardData; a card listed on more than one widget is kept once
+   * @param pOrganizationId id of organization owning the cards
+   * @param pCards array of cards
+   */
+  private void addPendingCards (String pOrganizationId, JSONArray pCards) {
+    synchronized (mPendingCards) {
+      for (int i = 0; i < pCards.length(); i++) {
+        JSONObject card = (JSONObject) pCards.get(i);
+        if (card != null && !mPendingCards.containsKey(card.getString("cardCommonId"))) {
+          mPendingCards.put(card.getString("cardCommonId"), new PendingCard(pOrganizationId, card, getUpdateTime(card)));
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Runs an action for each of the given cards on the executor, and waits until all of them are done
+   * @param pCards cards
+   * @param pAction action to run
+   */
+  private void runForEachCard (List<PendingCard> pCards, Consumer<PendingCard> pAction) {
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    for (PendingCard card : pCards) {
+      futures.add(CompletableFuture.runAsync(() -> pAction.accept(card), mExecutor));
+    }
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+  }
+
+
+  /**
+   * Returns the time a card was last updated, to export the most recently updated cards first
+   * @param pCard card
+   * @return time of the last update (or of the creation, if the card doesn't tell when it was updated) in msecs, zero if unknown
+   */
+  private long getUpdateTime (JSONObject pCard) {
+    for (String attribute : CARD_UPDATE_TIME_ATTRIBUTES) {
+      String value = pCard.optString(attribute, null);
+      if (!Strings.isNullOrEmpty(value)) {
+        try {
+          return parseDate(value).getTime();
+        } catch (IllegalArgumentException iae) {
+          mLogger.warn("Invalid {} {} for card {}", attribute, value, pCard.optString("cardCommonId"));
+        }
+      }
+    }
+    return 0;
+  }
+
+
+  /**
+   * Checks if the deadline has been reached, recording the given data as skipped if it was
+   * @param pType type of the skipped data, such as "cards"
+   * @param pOrganizationId id of the organization owning the data
+   * @param pParentId id of the organization, widget or card owning the data
+   * @return true if the deadline has been reached and the data must not be exported
+   */
+  private boolean skipIfPastDeadline (String pType, String pOrganizationId, String pParentId) {
+    if (isPastDeadline()) {
+      addSkipped(pType, pOrganizationId, pParentId);
+      return true;
+    }
+    return false;
+  }
+
+
+  /**
+   * @return true if there is a deadline and it has been reached
+   */
+  private boolean isPastDeadline () {
+    return mDeadline > 0 && System.currentTimeMillis() >= mDeadline;
   }
 
 
   /**
-   * Exports the task lists, tasks, comments and attachments of the given cards
+   * Records data skipped because the deadline was reached
+   * @param pType type of the skipped data, such as "cards"
+   * @param pOrganizationId id of the organization owning the data
+   * @param pParentId id of the organization, widget or card owning the data
+   */
+  private void addSkipped (String pType, String pOrganizationId, String pParentId) {
+    JSONObject skipped = new JSONObject();
+    skipped.put("type", pType);
+    skipped.putOpt("organizationId", pOrganizationId);
+    skipped.putOpt("id", pParentId);
+    synchronized (mSkipped) {
+      mSkipped.add(skipped);
+    }
+  }
+
+
+  /**
+   * Exports the task lists, tasks, comments and attachments of the given cards; the cards are exported
+   * concurrently on the executor, and this method returns when all of them are done
    * @param pDestDir directory where to write the exported data
    * @param pOrganizationId id of organization under which to search for cards
    * @param pCards array of cards
@@ -217,16 +530,20 @@ public class FavroExporter {
     Preconditions.checkNotNull(pOrganizationId);
     Preconditions.checkNotNull(pCards);
 
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
     for (int i = 0; i < pCards.length(); i++) {
       JSONObject card = (JSONObject) pCards.get(i);
       if (card != null) {
-        String cardCommonId = card.getString("cardCommonId");
-        JSONArray attachments = card.getJSONArray("attachments");
-        downloadAttachments(pDestDir, cardCommonId, attachments);
-        exportTaskListsAndTasks(pDestDir, pOrganizationId, card);
-        exportComments(pDestDir, pOrganizationId, card);
+        futures.add(CompletableFuture.runAsync(() -> {
+          String cardCommonId = card.getString("cardCommonId");
+          JSONArray attachments = card.getJSONArray("attachments");
+          downloadAttachments(pDestDir, cardCommonId, attachments);
+          exportTaskListsAndTasks(pDestDir, pOrganizationId, card);
+          exportComments(pDestDir, pOrganizationId, card);
+        }, mExecutor));
       }
     }
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
   }
 
 
@@ -246,15 +563,21 @@ public class FavroExporter {
       String cardCommonId = pCard.getString("cardCommonId");
       int tasksTotal = pCard.getInt("tasksTotal");
       if (tasksTotal > 0) {
+        long start = System.currentTimeMillis();
         JSONArray tasklists = getEntities(mStatus.getFavroBaseUrl() + "/tasklists?cardCommonId=" + cardCommonId, pOrganizationId);
-        JSONArray tasks = getEntities(mStatus.getFavroBaseUrl() + "/tasks?cardCommonId=" + cardCommonId, pOrganizationId);
         if (tasklists != null) {
-          saveJsonToFile(pDestDir, "tasklists-" + cardCommonId + ".json", tasklists);
-          mLogger.info(ctx + "exported " + tasklists.length() + " task lists for card " + cardCommonId);
+          saveEntities(pDestDir, "tasklists", pOrganizationId, cardCommonId, tasklists, start);
+          mLogger.debug("{}exported {} task lists for card {}", ctx, tasklists.length(), cardCommonId);
+        } else {
+          addSkipped("tasklists", pOrganizationId, cardCommonId);
         }
+        start = System.currentTimeMillis();
+        JSONArray tasks = getEntities(mStatus.getFavroBaseUrl() + "/tasks?cardCommonId=" + cardCommonId, pOrganizationId);
         if (tasks != null) {
-          saveJsonToFile(pDestDir, "tasks-" + cardCommonId + ".json", tasks);
-          mLogger.info(ctx + "exported " + tasks.length() + " tasks for card " + cardCommonId);
+          saveEntities(pDestDir, "tasks", pOrganizationId, cardCommonId, tasks, start);
+          mLogger.debug("{}exported {} tasks for card {}", ctx, tasks.length(), cardCommonId);
+        } else {
+          addSkipped("tasks", pOrganizationId, cardCommonId);
         }
       }
     }
@@ -277,10 +600,13 @@ public class FavroExporter {
       String cardCommonId = pCard.getString("cardCommonId");
       int numComments = pCard.getInt("numComments");
       if (numComments > 0) {
+        long start = System.currentTimeMillis();
         JSONArray comments = getEntities(mStatus.getFavroBaseUrl() + "/comments?cardCommonId=" + cardCommonId, pOrganizationId);
         if (comments != null) {
-          saveJsonToFile(pDestDir, "comments-" + cardCommonId + ".json", comments);
-          mLogger.info(ctx + "exported " + comments.length() + " comments for card " + cardCommonId);
+          saveEntities(pDestDir, "comments", pOrganizationId, cardCommonId, comments, start);
+          mLogger.debug("{}exported {} comments for card {}", ctx, comments.length(), cardCommonId);
+        } else {
+          addSkipped("comments", pOrganizationId, cardCommonId);
         }
       }
     }
@@ -288,7 +614,8 @@ public class FavroExporter {
 
 
   /**
-   * Exports the attachment of the given card to a subdirectory "attachments-cardCommonId" of the given directory
+   * Exports the attachment of the given card to a subdirectory "attachments-cardCommonId" of the given directory;
+   * the attachments not downloaded before the deadline are recorded as skipped
    * @param pDestDir destination directory
    * @param pCardCommonId id of card owning the attachments
    * @param pAttachments array of attachments
@@ -299,21 +626,37 @@ public class FavroExporter {
     Preconditions.checkNotNull(pCardCommonId);
     Preconditions.checkNotNull(pAttachments);
 
-    if (pAttachments.length() > 0) {
+    for (int j = 0; j < pAttachments.length(); j++) {
+      mAttachmentPaths.add("attachments-" + pCardCommonId + "/" + pAttachments.getJSONObject(j).getString("name"));
+    }
+    if (pAttachments.length() > 0 && isPastDeadline()) {
+      for (int j = 0; j < pAttachments.length(); j++) {
+        addSkipped("attachment", null, "attachments-" + pCardCommonId + "/" + pAttachments.getJSONObject(j).getString("name"));
+      }
+    } else if (pAttachments.length() > 0) {
       File attachmentsDir = new File(pDestDir, "attachments-" + pCardCommonId);
-      if (!attachmentsDir.mkdirs()) {
-        mLogger.error(ctx + "could not create directory " + attachmentsDir.getAbsolutePath());
+      if (!attachmentsDir.isDirectory() && !attachmentsDir.mkdirs()) {
+        mLogger.error("{}could not create directory {}", ctx, attachmentsDir.getAbsolutePath());
       } else {
         for (int j = 0; j < pAttachments.length(); j++) {
           JSONObject attachment = (JSONObject)pAttachments.get(j);
           String fileName = attachment.getString("name");
           String fileUrl = attachment.getString("fileURL");
           File attachmentFile = new File(attachmentsDir, fileName);
+          String relativePath = attachmentsDir.getName() + "/" + fileName;
           try {
-            FileUtils.copyURLToFile(new URL(fileUrl), attachmentFile, 30000, 30000);
-            mLogger.info(ctx + "exported attachment for card " + pCardCommonId + " to file " + attachmentFile.getAbsolutePath());
+            long start = System.currentTimeMillis();
+            HashCode hash = isPastDeadline() ? null : mDownloader.download(new URL(fileUrl), pDestDir, relativePath);
+            if (hash == null) {
+              // the deadline was reached before or during the download (which can be resumed by the next export)
+              addSkipped("attachment", null, relativePath);
+              continue;
+            }
+            mManifest.addEntry(relativePath, hash, attachmentFile.length());
+            logEvent("attachment", relativePath, 1, attachmentFile.length(), start);
+            mLogger.debug("{}exported attachment for card {} to file {}", ctx, pCardCommonId, attachmentFile.getAbsolutePath());
           } catch (IOException ioe) {
-            mLogger.error(ctx + "could not download URL " + fileUrl + " to destination " + attachmentFile.getAbsolutePath());
+            mLogger.error("{}could not download URL {} to destination {}: {}", ctx, fileUrl, attachmentFile.getAbsolutePath(), ioe.getMessage());
           }
         }
       }
@@ -322,22 +665,96 @@ public class FavroExporter {
 
 
   /**
-   * Saves the given JSON array (the "entities" exported by Favro) to a file
+   * Deletes the partial downloads left by previous exports for attachments that are not listed in this export anymore
+   * (because they were deleted or renamed in Favro); nothing is deleted if the deadline prevented some organizations,
+   * boards or cards from being listed, since their attachments are unknown
+   * @param pDestDir directory where the exported data was written
+   */
+  public void removeStalePartialDownloads (File pDestDir) {
+    String ctx = "removeStalePartialDownloads - ";
+    Preconditions.checkNotNull(pDestDir);
+    synchronized (mSkipped) {
+      if (mSkipped.stream().anyMatch(skipped -> ATTACHMENT_LISTING_TYPES.contains(skipped.getString("type")))) {
+        mLogger.info("{}some attachments were not listed, keeping all the partial downloads", ctx);
+        return;
+      }
+    }
+    AttachmentDownloader.removeStalePartialDownloads(pDestDir, mAttachmentPaths);
+  }
+
+
+  /**
+   * Writes the manifest with the checksums of all the files exported so far to a file "manifest.json" in the given directory;
+   * when exporting to a database, it must be called after the database has been closed, so that its file is complete
+   * @param pDestDir directory where the exported data was written
+   */
+  public void writeManifest (File pDestDir) {
+    Preconditions.checkNotNull(pDestDir);
+    if (mDatabase != null) {
+      mManifest.addFile(pDestDir, ExportDatabase.DATABASE_FILE_NAME);
+    }
+    mManifest.writeToFile(pDestDir);
+  }
+
+
+  /**
+   * Saves the given entities to the export database if there is one, otherwise to a file "entityType-parentId.json"
+   * (or "entityType.json" if there is no parent) in the given directory
+   * @param pDestDir directory where the file will be written
+   * @param pEntityType entity type, such as "cards" or "comments"
+   * @param pOrganizationId id of the organization owning the entities (can be null for organizations)
+   * @param pParentId id of the organization, widget or card the entities belong to (can be null for organizations)
+   * @param pJson array of entities
+   * @param pStartTime time (in msecs) when the export of the entities started, for the export events
+   */
+  private void saveEntities (File pDestDir, String pEntityType, String pOrganizationId, String pParentId, JSONArray pJson, long pStartTime) {
+    long size;
+    if (mDatabase != null && ExportDatabase.supports(pEntityType)) {
+      size = mDatabase.insertEntities(pEntityType, pOrganizationId, pParentId, pJson);
+    } else {
+      size = saveJsonToFile(pDestDir, pEntityType + (pParentId != null ? "-" + pParentId : "") + ".json", pJson);
+    }
+    logEvent(pEntityType, pParentId, pJson.length(), size, pStartTime);
+  }
+
+
+  /**
+   * Writes an event to the export event log, a compact tab-separated audit trail of the exported data
+   * (account user, type, id, number of entities, size in bytes, duration in msecs)
+   * @param pType type of the exported data, such as "cards" or "attachment"
+   * @param pId id of the organization, widget or card owning the data, or path of the attachment
+   * @param pCount number of entities
+   * @param pSize size of the exported data in bytes, -1 if it could not be saved
+   * @param pStartTime time (in msecs) when the export of the data started
+   */
+  private void logEvent (String pType, String pId, int pCount, long pSize, long pStartTime) {
+    mEventLogger.info("{}\t{}\t{}\t{}\t{}\t{}", mStatus.getFavroUser(), pType, pId, Unbox.box(pCount), Unbox.box(pSize), Unbox.box(System.currentTimeMillis() - pStartTime));
+  }
+
+
+  /**
+   * Saves the given JSON array (the "entities" exported by Favro) to a file, recording its checksum in the manifest
    * @param pDestDir directory where the file will be written
    * @param pFileName name of the destination file
    * @param pJson array of entities
+   * @return number of bytes written, -1 if the file could not be written
    */
-  private void saveJsonToFile (File pDestDir, String pFileName, JSONArray pJson) {
+  private long saveJsonToFile (File pDestDir, String pFileName, JSONArray pJson) {
     String ctx = "saveJsonToFile - ";
     Preconditions.checkNotNull(pDestDir);
     Preconditions.checkNotNull(pFileName);
     Preconditions.checkNotNull(pJson);
     File jsonFile = new File(pDestDir, pFileName);
-    try (FileWriter writer = new FileWriter(jsonFile)) {
+    try (HashingOutputStream hashingOut = new HashingOutputStream(Hashing.sha256(), new FileOutputStream(jsonFile));
+         CountingOutputStream out = new CountingOutputStream(hashingOut);
+         Writer writer = new OutputStreamWriter(out)) {
       writer.write(pJson.toString(2));
       writer.flush();
+      mManifest.addEntry(pFileName, hashingOut.hash(), out.getCount());
+      return out.getCount();
     } catch (IOException ioe) {
-      mLogger.error(ctx + "IOException saving json to file " + jsonFile.getAbsolutePath());
+      mLogger.error("{}IOException saving json to file {}", ctx, jsonFile.getAbsolutePath());
+      return -1;
     }
   }
 
@@ -345,7 +762,7 @@ public class FavroExporter {
   /**
    * Retrieve an array of entities from the Favro API
    * @param pUrl url to request
-   * @return array of entities
+   * @return array of entities, or null if the deadline was reached before all the entities were retrieved
    */
   private JSONArray getEntities (String pUrl) {
     return getEntities(pUrl, null);
@@ -356,7 +773,7 @@ public class FavroExporter {
    * Retrieve an array of entities from the Favro API
    * @param pUrl url to request
    * @param pOrganizationId id of organization owning the entities (can be null if retrieving organizations)
-   * @return array of entities
+   * @return array of entities, or null if the deadline was reached before all the entities were retrieved
    */
   private JSONArray getEntities (String pUrl, String pOrganizationId) {
     String ctx = "getEntities - ";
@@ -365,13 +782,18 @@ public class FavroExporter {
     int currentPage = 0;
     String requestId = null;
     while (true) {
+      // stop retrying or fetching the next pages once the deadline is reached
+      if (isPastDeadline()) {
+        mLogger.warn("{}deadline reached, giving up request {}", ctx, pUrl);
+        return null;
+      }
       try {
-        HttpRequest request = prepareRequest(pUrl, pOrganizationId, requestId, currentPage);
-        HttpResponse<String> response = request.asString();
+        HttpResponse<String> response = sendRequest(pUrl, pOrganizationId, requestId, currentPage);
         mStatus.setWaitTime(checkRateLimits(response));
-        mStatus.setFavroBackendId(response.getHeaders().getFirst(FAVRO_BACKEND_ID_HEADER));
+        mStatus.setRateLimitRemaining(getRateLimitRemaining(response));
+        mStatus.setFavroBackendId(getHeader(response, FAVRO_BACKEND_ID_HEADER));
         if (!checkResponse(response)) {
-          mLogger.error(ctx + "Favro API returned error code " + response.getStatus() + " for request " + pUrl);
+          mLogger.error("{}Favro API returned error code {} for request {}", ctx, response.getStatus(), pUrl);
           continue;
         }
         String responseBody = response.getBody();
@@ -392,13 +814,217 @@ public class FavroExporter {
         }
         currentPage++;
       } catch (UnirestException ue) {
-        mLogger.error(ctx + "UnirestException for request " + pUrl);
+        mLogger.error("{}UnirestException for request {}", ctx, pUrl);
       }
     }
     return result;
   }
 
 
+  /**
+   * Sends a request to the Favro API within the limit of concurrent requests, adapting the limit to the outcome
+   * @param pUrl url to request
+   * @param pOrganizationId organization owning the entities
+   * @param pRequestId request id from a previous response (needed for paginated requests)
+   * @param pRequestedPage page to request
+   * @return response
+   * @throws UnirestException if the request fails
+   */
+  private HttpResponse<String> sendRequest (String pUrl, String pOrganizationId, String pRequestId, int pRequestedPage) throws UnirestException {
+    HttpRequest request = prepareRequest(pUrl, pOrganizationId, pRequestId, pRequestedPage);
+    String endpoint = getEndpoint(pUrl);
+    mLimiter.acquire();
+    mStatus.getMetrics().incrementRequests();
+    long start = System.currentTimeMillis();
+    boolean dropped = true;
+    try {
+      HttpResponse<String> response = (mHedgePercentile > 0)
+              ? sendHedgedRequest(request, endpoint, () -> prepareRequest(pUrl, pOrganizationId, pRequestId, pRequestedPage))
+              : request.asString();
+      if (response.getStatus() == HTTP_TOO_MANY_REQUESTS) {
+        mStatus.getMetrics().incrementThrottledRequests();
+      } else if (!checkResponse(response)) {
+        mStatus.getMetrics().incrementFailedRequests();
+        // only server errors are a sign of overload
+        dropped = response.getStatus() >= 500;
+      } else {
+        dropped = false;
+      }
+      return response;
+    } catch (UnirestException ue) {
+      mStatus.getMetrics().incrementFailedRequests();
+      throw ue;
+    } finally {
+      long latency = System.currentTimeMillis() - start;
+      if (dropped) {
+        mLimiter.onDropped();
+      } else {
+        mLimiter.onSuccess(endpoint, latency);
+        mLatencies.record(endpoint, latency);
+      }
+    }
+  }
+
+
+  /**
+   * Sends a request and, if it takes longer than the configured percentile of the recent latencies of its endpoint,
+   * sends a duplicate request and keeps the first successful answer; the duplicate is sent only if the rate limits leave room for it
+   * @param pRequest request to send
+   * @param pEndpoint endpoint of the request, such as "/cards"
+   * @param pDuplicate prepares the duplicate request
+   * @return first successful response, or an error response if neither request succeeded
+   * @throws UnirestException if both requests fail
+   */
+  private HttpResponse<String> sendHedgedRequest (HttpRequest pRequest, String pEndpoint, Supplier<HttpRequest> pDuplicate) throws UnirestException {
+    CompletableFuture<HttpResponse<String>> primary = sendAsync(pRequest);
+    long hedgeDelay = mLatencies.percentile(pEndpoint, mHedgePercentile);
+    if (hedgeDelay < 0) {
+      return await(primary);
+    }
+    try {
+      return primary.get(Math.max(hedgeDelay, MIN_HEDGE_DELAY), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException te) {
+      // the request is slow, hedge it below
+    } catch (ExecutionException ee) {
+      return await(primary);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      primary.cancel(true);
+      throw new UnirestException(ie);
+    }
+    if (!canHedge()) {
+      return await(primary);
+    }
+
+    mStatus.getMetrics().incrementRequests();
+    mStatus.getMetrics().incrementHedgedRequests();
+    CompletableFuture<HttpResponse<String>> hedge = sendAsync(pDuplicate.get());
+    CompletableFuture<HttpResponse<String>> first = new CompletableFuture<>();
+    BiConsumer<HttpResponse<String>, Throwable> onComplete = (response, throwable) -> {
+      if (throwable == null && checkResponse(response)) {
+        first.complete(response);
+      } else if (primary.isDone() && hedge.isDone()) {
+        // neither request succeeded: return one of the error responses, so that it is handled like an unhedged request
+        HttpResponse<String> primaryResponse = getIfCompleted(primary);
+        HttpResponse<String> hedgeResponse = getIfCompleted(hedge);
+        if (checkResponse(hedgeResponse)) {
+          // the other request succeeded at the same time
+          first.complete(hedgeResponse);
+        } else if (primaryResponse != null) {
+          first.complete(primaryResponse);
+        } else if (hedgeResponse != null) {
+          first.complete(hedgeResponse);
+        } else {
+          first.completeExceptionally(throwable);
+        }
+      }
+    };
+    primary.whenComplete(onComplete);
+    hedge.whenComplete(onComplete);
+    try {
+      HttpResponse<String> response = await(first);
+      if (hedge.isDone() && !hedge.isCompletedExceptionally() && hedge.join() == response) {
+        mStatus.getMetrics().incrementHedgeWins();
+      }
+      return response;
+    } finally {
+      // abort the request that lost the race
+      primary.cancel(true);
+      hedge.cancel(true);
+    }
+  }
+
+
+  /**
+   * Checks if the rate limits leave room for a duplicate request: at least a tenth of the budget (the highest number
+   * of remaining requests reported so far) must be left; if the Favro API doesn't report its rate limits, there is
+   * no budget to protect, and the requests are hedged
+   * @return true if a slow request may be hedged
+   */
+  private boolean canHedge () {
+    int remaining = mStatus.getRateLimitRemaining();
+    if (remaining < 0) {
+      return true;
+    }
+    return remaining > 0 && remaining >= mStatus.getRateLimitBudget() * HEDGE_MIN_RATE_LIMIT_FRACTION;
+  }
+
+
+  /**
+   * @param pResponse future response
+   * @return response, or null if the request has not completed or has failed
+   */
+  private HttpResponse<String> getIfCompleted (CompletableFuture<HttpResponse<String>> pResponse) {
+    return (pResponse.isDone() && !pResponse.isCompletedExceptionally()) ? pResponse.join() : null;
+  }
+
+
+  /**
+   * Sends a request asynchronously
+   * @param pRequest request to send
+   * @return future response; cancelling it aborts the request
+   */
+  private CompletableFuture<HttpResponse<String>> sendAsync (HttpRequest pRequest) {
+    CompletableFuture<HttpResponse<String>> result = new CompletableFuture<>();
+    Future<HttpResponse<String>> request = pRequest.asStringAsync(new Callback<String>() {
+      @Override
+      public void completed (HttpResponse<String> pResponse) {
+        result.complete(pResponse);
+      }
+
+      @Override
+      public void failed (UnirestException pException) {
+        result.completeExceptionally(pException);
+      }
+
+      @Override
+      public void cancelled () {
+        result.cancel(true);
+      }
+    });
+    result.whenComplete((response, throwable) -> {
+      if (result.isCancelled()) {
+        request.cancel(true);
+      }
+    });
+    return result;
+  }
+
+
+  /**
+   * Waits for a response
+   * @param pResponse future response
+   * @return response
+   * @throws UnirestException if the request failed or the wait was interrupted
+   */
+  private HttpResponse<String> await (CompletableFuture<HttpResponse<String>> pResponse) throws UnirestException {
+    try {
+      return pResponse.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new UnirestException(ie);
+    } catch (ExecutionException ee) {
+      if (ee.getCause() instanceof UnirestException) {
+        throw (UnirestException) ee.getCause();
+      }
+      throw new UnirestException(ee);
+    } catch (CancellationException ce) {
+      throw new UnirestException(ce);
+    }
+  }
+
+
+  /**
+   * Returns the endpoint of a Favro API url, used to group the latencies of similar requests
+   * @param pUrl url
+   * @return last segment of the url path, such as "/cards"
+   */
+  private String getEndpoint (String pUrl) {
+    String path = URI.create(pUrl).getPath();
+    return (path != null && path.lastIndexOf('/') >= 0) ? path.substring(path.lastIndexOf('/')) : pUrl;
+  }
+
+
   /**
    * Checks how much time we should wait before issuing the next request
    * @param pResponse response containing rate limiting headers
@@ -406,11 +1032,11 @@ public class FavroExporter {
    */
   private long checkRateLimits (HttpResponse<?> pResponse) {
     Preconditions.checkNotNull(pResponse);
-    String reqRemainingStr = pResponse.getHeaders().getFirst(FAVRO_RATE_LIMIT_REMAINING_HEADER);
+    String reqRemainingStr = getHeader(pResponse, FAVRO_RATE_LIMIT_REMAINING_HEADER);
     if (!Strings.isNullOrEmpty(reqRemainingStr)) {
       Integer reqRemaining = Integer.parseInt(reqRemainingStr);
       if (reqRemaining < 1) {
-        String resetTimeStr = pResponse.getHeaders().getFirst(FAVRO_RATE_LIMIT_RESET);
+        String resetTimeStr = getHeader(pResponse, FAVRO_RATE_LIMIT_RESET);
         if (!Strings.isNullOrEmpty(resetTimeStr)) {
           Date resetTime = parseDate(resetTimeStr);
           long resetTimeMsecs = resetTime.getTime();
@@ -422,6 +1048,34 @@ public class FavroExporter {
   }
 
 
+  /**
+   * Reads a header of a response; header names are case-insensitive, but the response keeps them as the server sent them
+   * @param pResponse response
+   * @param pName header name
+   * @return first value of the header, or null if the response doesn't have it
+   */
+  private String getHeader (HttpResponse<?> pResponse, String pName) {
+    for (Map.Entry<String, List<String>> header : pResponse.getHeaders().entrySet()) {
+      if (pName.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty()) {
+        return header.getValue().get(0);
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   * Reads how many requests are left before the rate limit is reached
+   * @param pResponse response containing rate limiting headers
+   * @return number of requests left, or -1 if the response doesn't tell
+   */
+  private int getRateLimitRemaining (HttpResponse<?> pResponse) {
+    Preconditions.checkNotNull(pResponse);
+    String reqRemainingStr = getHeader(pResponse, FAVRO_RATE_LIMIT_REMAINING_HEADER);
+    return Strings.isNullOrEmpty(reqRemainingStr) ? -1 : Integer.parseInt(reqRemainingStr);
+  }
+
+
   /**
    * Prepares a request to the Favro API, possibly waiting a certain amount of time to satisfy the rate limits
    * @param pUrl url to request
@@ -449,9 +1103,13 @@ public class FavroExporter {
       headers.put(FAVRO_ORGANIZATION_ID_HEADER, pOrganizationId);
     }
 
-    // wait if we're over the rate limit
+    // wait if we're over the rate limit, but not past the deadline
     if (mStatus.getWaitTime() > 0L) {
-      waitForRateLimitReset(mStatus.getWaitTime());
+      long waitTime = mStatus.getWaitTime();
+      if (mDeadline > 0) {
+        waitTime = Math.min(waitTime, Math.max(0, mDeadline - System.currentTimeMillis()));
+      }
+      waitForRateLimitReset(waitTime);
     }
 
     // if this is a paged request (pRequestedPage > 0), add the page and the request id to the parameters
@@ -487,7 +1145,7 @@ public class FavroExporter {
    * @param pMsecs number of milliseconds to wait
    */
   private void waitForRateLimitReset (long pMsecs) {
-    mLogger.info("Waiting until " + new Date(System.currentTimeMillis() + pMsecs) + " before the next request");
+    mLogger.info("Waiting until {} before the next request", new Date(System.currentTimeMillis() + pMsecs));
     try {
       Thread.sleep(pMsecs);
     } catch (InterruptedException ie) {
@@ -522,4 +1180,22 @@ public class FavroExporter {
     return fmt.parseDateTime(pDateStr).toDate();
   }
 
+
+  /**
+   * A card whose data is waiting to be exported
+   */
+  private static class PendingCard {
+    private final String mOrganizationId;
+    private final String mCardCommonId;
+    private final JSONObject mCard;
+    private final long mUpdateTime;
+
+    PendingCard (String pOrganizationId, JSONObject pCard, long pUpdateTime) {
+      mOrganizationId = pOrganizationId;
+      mCardCommonId = pCard.getString("cardCommonId");
+      mCard = pCard;
+      mUpdateTime = pUpdateTime;
+    }
+  }
+
 } // end FavroExporter
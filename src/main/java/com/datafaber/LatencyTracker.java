@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the latencies of the most recent requests to each endpoint of the Favro API, to estimate their percentiles
+ */
+public class LatencyTracker {
+
+  // number of recent requests kept for each endpoint
+  private static final int WINDOW_SIZE = 256;
+
+  // minimum number of requests needed before estimating a percentile
+  private static final int MIN_SAMPLES = 20;
+
+  private final Map<String, Window> mWindows = new ConcurrentHashMap<>();
+
+
+  /**
+   * Records the latency of a request
+   * @param pEndpoint endpoint, such as "/cards"
+   * @param pLatencyMsecs latency of the request
+   */
+  public void record (String pEndpoint, long pLatencyMsecs) {
+    Preconditions.checkNotNull(pEndpoint);
+    mWindows.computeIfAbsent(pEndpoint, endpoint -> new Window()).add(pLatencyMsecs);
+  }
+
+
+  /**
+   * Estimates a percentile of the latency of the recent requests to an endpoint
+   * @param pEndpoint endpoint, such as "/cards"
+   * @param pPercentile percentile, between 0 (excluded) and 100
+   * @return latency in msecs, or -1 if there are not enough requests to estimate it
+   */
+  public long percentile (String pEndpoint, double pPercentile) {
+    Preconditions.checkNotNull(pEndpoint);
+    Preconditions.checkArgument(pPercentile > 0 && pPercentile <= 100, "invalid percentile " + pPercentile);
+    Window window = mWindows.get(pEndpoint);
+    long[] samples = (window != null) ? window.snapshot() : new long[0];
+    if (samples.length < MIN_SAMPLES) {
+      return -1;
+    }
+    Arrays.sort(samples);
+    int index = (int) Math.ceil(pPercentile / 100 * samples.length) - 1;
+    return samples[Math.max(0, index)];
+  }
+
+
+  /**
+   * Ring buffer with the latencies of the most recent requests to an endpoint
+   */
+  private static class Window {
+    private final long[] mSamples = new long[WINDOW_SIZE];
+    private int mCount;
+    private int mNext;
+
+    synchronized void add (long pLatencyMsecs) {
+      mSamples[mNext] = pLatencyMsecs;
+      mNext = (mNext + 1) % WINDOW_SIZE;
+      mCount = Math.min(mCount + 1, WINDOW_SIZE);
+    }
+
+    synchronized long[] snapshot () {
+      return Arrays.copyOf(mSamples, mCount);
+    }
+  }
+
+} // end LatencyTracker
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber.model;
+
+/**
+ * A Favro account to export, as read from the configuration file
+ */
+public class FavroAccount {
+
+  // account name, also used as the name of the account's subdirectory (empty when exporting a single account)
+  private String mName;
+
+  // Favro base url and credentials used for the export
+  private String mFavroBaseUrl;
+  private String mFavroUser;
+  private String mFavroApiToken;
+
+  public FavroAccount (String pName, String pFavroBaseUrl, String pFavroUser, String pFavroApiToken) {
+    mName = pName;
+    mFavroBaseUrl = pFavroBaseUrl;
+    mFavroUser = pFavroUser;
+    mFavroApiToken = pFavroApiToken;
+  }
+
+  public String getName () {
+    return mName;
+  }
+
+  public String getFavroBaseUrl () {
+    return mFavroBaseUrl;
+  }
+
+  public String getFavroUser () {
+    return mFavroUser;
+  }
+
+  public String getFavroApiToken () {
+    return mFavroApiToken;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters collected during an export; safe to update from several threads
+ */
+public class FavroExportMetrics {
+
+  // requests sent to the Favro API
+  private final AtomicLong mRequests = new AtomicLong();
+
+  // requests that failed or returned an error status
+  private final AtomicLong mFailedRequests = new AtomicLong();
+
+  // requests rejected by the Favro API because of the rate limits
+  private final AtomicLong mThrottledRequests = new AtomicLong();
+
+  // duplicate requests sent because the original request was slow (also counted in the requests)
+  private final AtomicLong mHedgedRequests = new AtomicLong();
+
+  // duplicate requests that answered before the original request
+  private final AtomicLong mHedgeWins = new AtomicLong();
+
+  // current limit of concurrent requests
+  private volatile int mConcurrencyLimit;
+
+  public long getRequests () {
+    return mRequests.get();
+  }
+
+  public void incrementRequests () {
+    mRequests.incrementAndGet();
+  }
+
+  public long getFailedRequests () {
+    return mFailedRequests.get();
+  }
+
+  public void incrementFailedRequests () {
+    mFailedRequests.incrementAndGet();
+  }
+
+  public long getThrottledRequests () {
+    return mThrottledRequests.get();
+  }
+
+  public void incrementThrottledRequests () {
+    mThrottledRequests.incrementAndGet();
+  }
+
+  public long getHedgedRequests () {
+    return mHedgedRequests.get();
+  }
+
+  public void incrementHedgedRequests () {
+    mHedgedRequests.incrementAndGet();
+  }
+
+  public long getHedgeWins () {
+    return mHedgeWins.get();
+  }
+
+  public void incrementHedgeWins () {
+    mHedgeWins.incrementAndGet();
+  }
+
+  public int getConcurrencyLimit () {
+    return mConcurrencyLimit;
+  }
+
+  public void setConcurrencyLimit (int pConcurrencyLimit) {
+    mConcurrencyLimit = pConcurrencyLimit;
+  }
+
+  @Override
+  public String toString () {
+    return "requests=" + getRequests() +
+            ", failed=" + getFailedRequests() +
+            ", throttled=" + getThrottledRequests() +
+            ", hedged=" + getHedgedRequests() +
+            ", hedgeWins=" + getHedgeWins() +
+            ", concurrencyLimit=" + getConcurrencyLimit();
+  }
+}
@@ -27,13 +27,22 @@ public class FavroExportStatus {
   private String mFavroApiToken;
 
   // Favro backend identifier
-  private String mFavroBackendId;
+  private volatile String mFavroBackendId;
 
   // Favro organization identifier
-  private String mFavroOrganizationId;
+  private volatile String mFavroOrganizationId;
 
   // time (in msecs) to wait before issuing the next request
-  private long mWaitTime;
+  private volatile long mWaitTime;
+
+  // requests remaining before the rate limit is reached, as reported by the last response (-1 if unknown)
+  private volatile int mRateLimitRemaining = -1;
+
+  // highest number of remaining requests reported so far, an estimate of the rate limit budget (-1 if unknown)
+  private volatile int mRateLimitBudget = -1;
+
+  // counters for this export
+  private final FavroExportMetrics mMetrics = new FavroExportMetrics();
 
   public FavroExportStatus (String pFavroBaseUrl, String pFavroUser, String pFavroApiToken) {
     mFavroBaseUrl = pFavroBaseUrl;
@@ -76,4 +85,21 @@ public class FavroExportStatus {
   public void setWaitTime (long pWaitTime) {
     mWaitTime = pWaitTime;
   }
+
+  public int getRateLimitRemaining () {
+    return mRateLimitRemaining;
+  }
+
+  public synchronized void setRateLimitRemaining (int pRateLimitRemaining) {
+    mRateLimitRemaining = pRateLimitRemaining;
+    mRateLimitBudget = Math.max(mRateLimitBudget, pRateLimitRemaining);
+  }
+
+  public int getRateLimitBudget () {
+    return mRateLimitBudget;
+  }
+
+  public FavroExportMetrics getMetrics () {
+    return mMetrics;
+  }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber;
+
+import com.datafaber.model.FavroExportMetrics;
+import junit.framework.TestCase;
+import org.junit.Assert;
+
+/**
+ * Test cases for the adaptive concurrency limiter
+ */
+public class AdaptiveConcurrencyLimiterTest extends TestCase {
+
+  /**
+   * The limit grows while the limiter is saturated and the latencies are stable, up to the maximum
+   */
+  public void testIncrease () {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, new FavroExportMetrics());
+    Assert.assertEquals(2, limiter.getLimit());
+    for (int i = 0; i < 20; i++) {
+      runRound(limiter, "/tasks", 10);
+    }
+    Assert.assertEquals(4, limiter.getLimit());
+  }
+
+
+  /**
+   * Slow endpoints don't look like latency spikes of fast endpoints, but a spike on the same endpoint halves the limit
+   */
+  public void testDecreaseOnSpike () {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, new FavroExportMetrics());
+    while (limiter.getLimit() < 4) {
+      runRound(limiter, "/tasks", 10);
+    }
+
+    // a page of cards normally takes much longer than the tasks of a card
+    runRound(limiter, "/cards", 500);
+    runRound(limiter, "/cards", 500);
+    int limit = limiter.getLimit();
+    Assert.assertTrue(limit >= 4);
+
+    limiter.acquire();
+    limiter.onSuccess("/tasks", 100);
+    Assert.assertEquals(limit / 2, limiter.getLimit());
+  }
+
+
+  /**
+   * A burst of failures halves the limit only once
+   */
+  public void testDecreaseGuard () throws Exception {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, new FavroExportMetrics());
+    while (limiter.getLimit() < 4) {
+      runRound(limiter, "/tasks", 50);
+    }
+
+    limiter.acquire();
+    limiter.acquire();
+    limiter.onDropped();
+    limiter.onDropped();
+    Assert.assertEquals(2, limiter.getLimit());
+
+    // after the baseline latency has passed, a new failure is a new burst
+    Thread.sleep(200);
+    limiter.acquire();
+    limiter.onDropped();
+    Assert.assertEquals(1, limiter.getLimit());
+  }
+
+
+  /**
+   * Sends as many requests as the current limit allows, all completing with the given latency
+   * @param pLimiter limiter
+   * @param pEndpoint endpoint of the requests
+   * @param pLatencyMsecs latency of the requests
+   */
+  private void runRound (AdaptiveConcurrencyLimiter pLimiter, String pEndpoint, long pLatencyMsecs) {
+    int requests = pLimiter.getLimit();
+    for (int i = 0; i < requests; i++) {
+      pLimiter.acquire();
+    }
+    for (int i = 0; i < requests; i++) {
+      pLimiter.onSuccess(pEndpoint, pLatencyMsecs);
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber;
+
+import com.google.common.hash.Hashing;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Test cases for the attachment downloader, against a local HTTP server that supports range requests
+ */
+public class AttachmentDownloaderTest extends TestCase {
+
+  private static final byte[] CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes(StandardCharsets.UTF_8);
+  private static final String ETAG = "\"v2\"";
+  private static final String RELATIVE_PATH = "attachments-c1/attachment.bin";
+
+  private HttpServer mServer;
+  private URL mUrl;
+  private File mTestDir;
+  private File mDestFile;
+  private File mPartialFile;
+  private File mValidatorFile;
+
+  // Range header of each request received by the server (null if the request had none)
+  private final List<String> mRanges = new CopyOnWriteArrayList<>();
+
+
+  @Override
+  protected void setUp () throws Exception {
+    mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    mServer.createContext("/file", this::serveFile);
+    mServer.start();
+    mUrl = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/file");
+
+    mTestDir = new File("target/testAttachmentDownloader");
+    mTestDir.mkdirs();
+    FileUtils.cleanDirectory(mTestDir);
+    mDestFile = new File(mTestDir, RELATIVE_PATH);
+    mDestFile.getParentFile().mkdirs();
+    mPartialFile = new File(mTestDir, AttachmentDownloader.PARTIAL_DIR_NAME + "/files/" + RELATIVE_PATH);
+    mValidatorFile = new File(mTestDir, AttachmentDownloader.PARTIAL_DIR_NAME + "/validators/" + RELATIVE_PATH);
+  }
+
+
+  @Override
+  protected void tearDown () {
+    mServer.stop(0);
+  }
+
+
+  public void testFullDownload () throws Exception {
+    Assert.assertEquals(Hashing.sha256().hashBytes(CONTENT), new AttachmentDownloader().download(mUrl, mTestDir, RELATIVE_PATH));
+    assertDownloaded();
+    Assert.assertEquals(Arrays.asList((String) null), mRanges);
+  }
+
+
+  public void testResume () throws Exception {
+    FileUtils.writeByteArrayToFile(mPartialFile, Arrays.copyOf(CONTENT, 10));
+    FileUtils.writeStringToFile(mValidatorFile, ETAG, StandardCharsets.UTF_8);
+    Assert.assertEquals(Hashing.sha256().hashBytes(CONTENT), new AttachmentDownloader().download(mUrl, mTestDir, RELATIVE_PATH));
+    assertDownloaded();
+    Assert.assertEquals(Arrays.asList("bytes=10-"), mRanges);
+  }
+
+
+  /**
+   * A partial download of an older version of the file must not be completed with the bytes of the new version
+   */
+  public void testResumeChangedFile () throws Exception {
+    FileUtils.writeStringToFile(mPartialFile, "old version", StandardCharsets.UTF_8);
+    FileUtils.writeStringToFile(mValidatorFile, "\"v1\"", StandardCharsets.UTF_8);
+    Assert.assertEquals(Hashing.sha256().hashBytes(CONTENT), new AttachmentDownloader().download(mUrl, mTestDir, RELATIVE_PATH));
+    assertDownloaded();
+  }
+
+
+  /**
+   * A partial download without a validator is discarded
+   */
+  public void testResumeWithoutValidator () throws Exception {
+    FileUtils.writeByteArrayToFile(mPartialFile, Arrays.copyOf(CONTENT, 10));
+    Assert.assertEquals(Hashing.sha256().hashBytes(CONTENT), new AttachmentDownloader().download(mUrl, mTestDir, RELATIVE_PATH));
+    assertDownloaded();
+    Assert.assertEquals(Arrays.asList((String) null), mRanges);
+  }
+
+
+  /**
+   * A partial download that was already complete is renamed without downloading it again
+   */
+  public void testResumeCompleteFile () throws Exception {
+    FileUtils.writeByteArrayToFile(mPartialFile, CONTENT);
+    FileUtils.writeStringToFile(mValidatorFile, ETAG, StandardCharsets.UTF_8);
+    Assert.assertEquals(Hashing.sha256().hashBytes(CONTENT), new AttachmentDownloader().download(mUrl, mTestDir, RELATIVE_PATH));
+    assertDownloaded();
+    Assert.assertEquals(Arrays.asList("bytes=" + CONTENT.length + "-"), mRanges);
+  }
+
+
+  /**
+   * An attachment whose name looks like a temporary file is not mistaken for one
+   */
+  public void testAttachmentNamedLikeTemporaryFile () throws Exception {
+    String relativePath = "attachments-c1/notes.part";
+    Assert.assertEquals(Hashing.sha256().hashBytes(CONTENT), new AttachmentDownloader().download(mUrl, mTestDir, relativePath));
+    AttachmentDownloader.removeStalePartialDownloads(mTestDir, Collections.singleton(relativePath));
+    Assert.assertArrayEquals(CONTENT, FileUtils.readFileToByteArray(new File(mTestDir, relativePath)));
+    Assert.assertFalse(new File(mTestDir, AttachmentDownloader.PARTIAL_DIR_NAME).exists());
+  }
+
+
+  /**
+   * Partial downloads of attachments that are not listed anymore are deleted, along with their directories
+   */
+  public void testRemoveStalePartialDownloads () throws Exception {
+    FileUtils.writeByteArrayToFile(mPartialFile, Arrays.copyOf(CONTENT, 10));
+    FileUtils.writeStringToFile(mValidatorFile, ETAG, StandardCharsets.UTF_8);
+    File otherPartialFile = new File(mTestDir, AttachmentDownloader.PARTIAL_DIR_NAME + "/files/attachments-c2/other.bin");
+    FileUtils.writeByteArrayToFile(otherPartialFile, Arrays.copyOf(CONTENT, 10));
+    AttachmentDownloader.removeStalePartialDownloads(mTestDir, Collections.singleton(RELATIVE_PATH));
+    Assert.assertTrue(mPartialFile.exists());
+    Assert.assertTrue(mValidatorFile.exists());
+    Assert.assertFalse(otherPartialFile.getParentFile().exists());
+  }
+
+
+  /**
+   * Checks that the destination file has the expected content, and that the temporary files are gone
+   */
+  private void assertDownloaded () throws IOException {
+    Assert.assertArrayEquals(CONTENT, FileUtils.readFileToByteArray(mDestFile));
+    Assert.assertFalse(mPartialFile.exists());
+    Assert.assertFalse(mValidatorFile.exists());
+  }
+
+
+  /**
+   * Serves CONTENT, honoring the Range and If-Range headers
+   * @param pExchange HTTP exchange
+   */
+  private void serveFile (HttpExchange pExchange) throws IOException {
+    String range = pExchange.getRequestHeaders().getFirst("Range");
+    String ifRange = pExchange.getRequestHeaders().getFirst("If-Range");
+    mRanges.add(range);
+    pExchange.getResponseHeaders().add("ETag", ETAG);
+    int start = 0;
+    if (range != null && (ifRange == null || ifRange.equals(ETAG))) {
+      start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+      if (start >= CONTENT.length) {
+        pExchange.getResponseHeaders().add("Content-Range", "bytes */" + CONTENT.length);
+        pExchange.sendResponseHeaders(416, -1);
+        pExchange.close();
+        return;
+      }
+      pExchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (CONTENT.length - 1) + "/" + CONTENT.length);
+      pExchange.sendResponseHeaders(206, CONTENT.length - start);
+    } else {
+      pExchange.sendResponseHeaders(200, CONTENT.length);
+    }
+    try (OutputStream out = pExchange.getResponseBody()) {
+      out.write(CONTENT, start, CONTENT.length - start);
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber;
+
+import com.datafaber.model.FavroExportStatus;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Test cases for the exports with a deadline, against a local HTTP server
+ */
+public class DeadlineExportTest extends TestCase {
+
+  private HttpServer mServer;
+  private File mTestDir;
+  private FavroExporter mExporter;
+
+  // cardCommonId of each request for the comments of a card, in the order they were received
+  private final List<String> mCommentRequests = new CopyOnWriteArrayList<>();
+
+
+  @Override
+  protected void setUp () throws Exception {
+    mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    mServer.createContext("/api/v1/cards", exchange -> respond(exchange, cards()));
+    mServer.createContext("/api/v1/tasklists", exchange -> respond(exchange, new JSONArray().put(new JSONObject().put("taskListId", "tl1"))));
+    mServer.createContext("/api/v1/tasks", exchange -> respond(exchange, new JSONArray().put(new JSONObject().put("taskId", "t1"))));
+    mServer.createContext("/api/v1/comments", exchange -> {
+      mCommentRequests.add(exchange.getRequestURI().getQuery().replace("cardCommonId=", ""));
+      respond(exchange, new JSONArray().put(new JSONObject().put("commentId", "m1")));
+    });
+    mServer.start();
+
+    mTestDir = new File("target/testDeadlineExport");
+    mTestDir.mkdirs();
+    FileUtils.cleanDirectory(mTestDir);
+    FavroExportStatus status = new FavroExportStatus("http://127.0.0.1:" + mServer.getAddress().getPort() + "/api/v1", "user", "token");
+    mExporter = new FavroExporter(status);
+  }
+
+
+  @Override
+  protected void tearDown () {
+    mServer.stop(0);
+  }
+
+
+  /**
+   * The data of the most recently updated cards is exported first, the cards without dates last
+   */
+  public void testMostRecentFirst () {
+    mExporter.setDeadline(System.currentTimeMillis() + 60000);
+    mExporter.exportCards(mTestDir, "o1", "w1");
+    Assert.assertTrue(mCommentRequests.isEmpty());
+
+    mExporter.exportPendingCardData(mTestDir);
+    Assert.assertEquals(Arrays.asList("ccNew", "ccMiddle", "ccCreated", "ccOld", "ccUndated"), mCommentRequests);
+
+    mExporter.writeSkippedReport(mTestDir);
+    Assert.assertEquals(0, readSkippedReport().length());
+  }
+
+
+  /**
+   * The data not exported before the deadline is listed in the skipped report, with the same types as the exported files
+   */
+  public void testSkippedReport () throws Exception {
+    mExporter.setDeadline(System.currentTimeMillis() + 1000);
+    mExporter.exportCards(mTestDir, "o1", "w1");
+    Thread.sleep(1500);
+    mExporter.exportPendingCardData(mTestDir);
+    mExporter.exportCards(mTestDir, "o1", "w2");
+    mExporter.writeSkippedReport(mTestDir);
+    Assert.assertTrue(mCommentRequests.isEmpty());
+
+    Map<String, Set<String>> skipped = new HashMap<>();
+    JSONArray report = readSkippedReport();
+    for (int i = 0; i < report.length(); i++) {
+      JSONObject item = report.getJSONObject(i);
+      skipped.computeIfAbsent(item.getString("type"), type -> new TreeSet<>()).add(item.getString("id"));
+    }
+    Assert.assertEquals(new HashSet<>(Arrays.asList("tasklists", "tasks", "comments", "attachment", "cards")), skipped.keySet());
+    Assert.assertEquals(Collections.singleton("ccNew"), skipped.get("tasklists"));
+    Assert.assertEquals(Collections.singleton("ccNew"), skipped.get("tasks"));
+    Assert.assertEquals(5, skipped.get("comments").size());
+    Assert.assertEquals(Collections.singleton("attachments-ccOld/old.txt"), skipped.get("attachment"));
+    Assert.assertEquals(Collections.singleton("w2"), skipped.get("cards"));
+  }
+
+
+  /**
+   * The partial downloads are all kept if the deadline prevented some boards from being listed, since the
+   * attachments of their cards are unknown
+   */
+  public void testPartialDownloadsKeptWhenBoardsSkipped () throws Exception {
+    File partialFile = writePartialDownload("attachments-ccUnknown/file.bin");
+    mExporter.setDeadline(System.currentTimeMillis() + 1);
+    Thread.sleep(10);
+    Assert.assertTrue(mExporter.exportWidgets(mTestDir, "o1").isEmpty());
+    mExporter.removeStalePartialDownloads(mTestDir);
+    Assert.assertTrue(partialFile.exists());
+  }
+
+
+  /**
+   * Without a deadline, only the partial downloads of the attachments listed by the export are kept
+   */
+  public void testStalePartialDownloadsRemoved () throws Exception {
+    File listedFile = writePartialDownload("attachments-ccOld/old.txt");
+    File staleFile = writePartialDownload("attachments-ccGone/file.bin");
+    mExporter.exportCards(mTestDir, "o1", "w1");
+    mExporter.exportPendingCardData(mTestDir);
+    mExporter.removeStalePartialDownloads(mTestDir);
+    Assert.assertTrue(listedFile.exists());
+    Assert.assertFalse(staleFile.exists());
+  }
+
+
+  /**
+   * Writes the temporary file and validator of a download in progress
+   * @param pRelativePath path of the attachment, relative to the export directory
+   * @return temporary file
+   */
+  private File writePartialDownload (String pRelativePath) throws IOException {
+    File partialFile = new File(mTestDir, AttachmentDownloader.PARTIAL_DIR_NAME + "/files/" + pRelativePath);
+    FileUtils.writeStringToFile(partialFile, "partial", StandardCharsets.UTF_8);
+    FileUtils.writeStringToFile(new File(mTestDir, AttachmentDownloader.PARTIAL_DIR_NAME + "/validators/" + pRelativePath), "\"v1\"", StandardCharsets.UTF_8);
+    return partialFile;
+  }
+
+
+  /**
+   * @return cards of a widget, with different update times
+   */
+  private JSONArray cards () {
+    return new JSONArray()
+            .put(card("ccOld").put("updatedAt", "2026-01-01T10:00:00.000Z")
+                    .put("attachments", new JSONArray().put(new JSONObject().put("name", "old.txt").put("fileURL", "http://127.0.0.1:1/old.txt"))))
+            .put(card("ccUndated"))
+            .put(card("ccNew").put("updatedAt", "2026-03-01T10:00:00.000Z").put("tasksTotal", 1))
+            .put(card("ccCreated").put("createdAt", "2026-01-15T10:00:00.000Z"))
+            .put(card("ccMiddle").put("lastUpdated", "2026-02-01T10:00:00.000Z"));
+  }
+
+
+  /**
+   * @param pCardCommonId card common id
+   * @return card with one comment and no attachments
+   */
+  private JSONObject card (String pCardCommonId) {
+    return new JSONObject()
+            .put("cardId", pCardCommonId)
+            .put("cardCommonId", pCardCommonId)
+            .put("numComments", 1)
+            .put("attachments", new JSONArray());
+  }
+
+
+  /**
+   * @return content of the skipped report
+   */
+  private JSONArray readSkippedReport () {
+    try {
+      return new JSONArray(FileUtils.readFileToString(new File(mTestDir, "skipped.json"), StandardCharsets.UTF_8));
+    } catch (IOException ioe) {
+      throw new AssertionError(ioe);
+    }
+  }
+
+
+  /**
+   * Sends a single page of entities
+   * @param pExchange HTTP exchange
+   * @param pEntities entities
+   */
+  private void respond (HttpExchange pExchange, JSONArray pEntities) throws IOException {
+    JSONObject page = new JSONObject().put("requestId", "r").put("page", 0).put("pages", 1).put("entities", pEntities);
+    byte[] body = page.toString().getBytes(StandardCharsets.UTF_8);
+    pExchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = pExchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Test cases for the export database
+ */
+public class ExportDatabaseTest extends TestCase {
+
+  public void testInsertEntities () throws Exception {
+    File testDir = new File("target/testDatabase");
+    testDir.mkdirs();
+    FileUtils.cleanDirectory(testDir);
+
+    // comments don't carry the widget id, and the card id is taken from the parent when missing
+    JSONArray cards = new JSONArray()
+            .put(new JSONObject().put("cardId", "c1").put("cardCommonId", "cc1").put("widgetCommonId", "w1").put("organizationId", "o1"))
+            .put(new JSONObject().put("cardId", "c2").put("cardCommonId", "cc2").put("widgetCommonId", "w1").put("organizationId", "o1"));
+    JSONArray comments = new JSONArray()
+            .put(new JSONObject().put("commentId", "m1").put("cardCommonId", "cc1").put("comment", "first"))
+            .put(new JSONObject().put("commentId", "m2").put("comment", "second, già"));
+
+    try (ExportDatabase database = new ExportDatabase(testDir)) {
+      database.insertEntities("cards", "o1", "w1", cards);
+      // the size is in bytes, as for the JSON files
+      long size = database.insertEntities("comments", "o1", "cc1", comments);
+      Assert.assertEquals(comments.getJSONObject(0).toString().getBytes(StandardCharsets.UTF_8).length
+              + comments.getJSONObject(1).toString().getBytes(StandardCharsets.UTF_8).length, size);
+    }
+
+    File dbFile = new File(testDir, ExportDatabase.DATABASE_FILE_NAME);
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+         Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT count(*) FROM comments m JOIN cards c ON c.cardCommonId = m.cardCommonId " +
+                 "WHERE c.widgetCommonId = 'w1' AND m.organizationId = 'o1'")) {
+      Assert.assertTrue(rs.next());
+      Assert.assertEquals(2, rs.getInt(1));
+    }
+
+    // the journal mode stored in the file must not require -wal/-shm files to read the database
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+         Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery("PRAGMA journal_mode")) {
+      Assert.assertTrue(rs.next());
+      Assert.assertEquals("delete", rs.getString(1));
+    }
+    Assert.assertFalse(new File(testDir, ExportDatabase.DATABASE_FILE_NAME + "-wal").exists());
+  }
+}
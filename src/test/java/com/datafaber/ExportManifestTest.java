@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber;
+
+import com.google.common.hash.Hashing;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Test cases for the export manifest
+ */
+public class ExportManifestTest extends TestCase {
+
+  public void testVerify () throws Exception {
+    File testDir = new File("target/testManifest");
+    testDir.mkdirs();
+    FileUtils.cleanDirectory(testDir);
+
+    byte[] content = "[{\"organizationId\": \"abc\"}]".getBytes(StandardCharsets.UTF_8);
+    File jsonFile = new File(testDir, "organizations.json");
+    FileUtils.writeByteArrayToFile(jsonFile, content);
+
+    ExportManifest manifest = new ExportManifest();
+    manifest.addEntry("organizations.json", Hashing.sha256().hashBytes(content), content.length);
+    manifest.writeToFile(testDir);
+    Assert.assertTrue(new File(testDir, ExportManifest.MANIFEST_FILE_NAME).exists());
+
+    // an untouched export matches its manifest
+    Assert.assertTrue(ExportManifest.verify(testDir).isEmpty());
+
+    // a modified file with the same size is detected by its checksum
+    content[3] = 'X';
+    FileUtils.writeByteArrayToFile(jsonFile, content);
+    List<String> problems = ExportManifest.verify(testDir);
+    Assert.assertEquals(1, problems.size());
+    Assert.assertTrue(problems.get(0).contains("checksum"));
+
+    // a missing file is reported
+    Assert.assertTrue(jsonFile.delete());
+    problems = ExportManifest.verify(testDir);
+    Assert.assertEquals(1, problems.size());
+    Assert.assertTrue(problems.get(0).contains("missing"));
+  }
+
+
+  public void testAddFile () throws Exception {
+    File testDir = new File("target/testManifestAddFile");
+    testDir.mkdirs();
+    FileUtils.cleanDirectory(testDir);
+
+    // a file written without going through the manifest, such as the export database, is hashed when added
+    File dbFile = new File(testDir, ExportDatabase.DATABASE_FILE_NAME);
+    FileUtils.writeByteArrayToFile(dbFile, "SQLite format 3".getBytes(StandardCharsets.UTF_8));
+    ExportManifest manifest = new ExportManifest();
+    manifest.addFile(testDir, ExportDatabase.DATABASE_FILE_NAME);
+    manifest.writeToFile(testDir);
+    Assert.assertTrue(ExportManifest.verify(testDir).isEmpty());
+
+    FileUtils.writeByteArrayToFile(dbFile, "SQLite format 4".getBytes(StandardCharsets.UTF_8));
+    List<String> problems = ExportManifest.verify(testDir);
+    Assert.assertEquals(1, problems.size());
+    Assert.assertTrue(problems.get(0).contains("checksum"));
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for the fair scheduler
+ */
+public class FairSchedulerTest extends TestCase {
+
+  /**
+   * A small account queued after a large one must not wait for all the tasks of the large one
+   */
+  public void testRoundRobin () throws Exception {
+    FairScheduler scheduler = new FairScheduler(1);
+    Executor large = scheduler.executorFor("large", () -> 1);
+    Executor small = scheduler.executorFor("small", () -> 1);
+
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch done = new CountDownLatch(105);
+
+    // hold the worker on the first task until all the tasks are queued, so that the order doesn't depend on timing
+    CountDownLatch queued = new CountDownLatch(1);
+    large.execute(() -> {
+      try {
+        queued.await();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      order.add("large");
+      done.countDown();
+    });
+    for (int i = 1; i < 100; i++) {
+      large.execute(() -> { order.add("large"); done.countDown(); });
+    }
+    for (int i = 0; i < 5; i++) {
+      small.execute(() -> { order.add("small"); done.countDown(); });
+    }
+    queued.countDown();
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    scheduler.shutdown();
+
+    // the accounts take turns, so the fifth small task runs after at most six tasks of the large one
+    Assert.assertTrue(order.lastIndexOf("small") <= 10);
+  }
+}
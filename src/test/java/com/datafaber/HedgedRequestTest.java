@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber;
+
+import com.datafaber.model.FavroExportMetrics;
+import com.datafaber.model.FavroExportStatus;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Test cases for the hedged requests, against a local HTTP server that answers with a scripted sequence of responses
+ */
+public class HedgedRequestTest extends TestCase {
+
+  // requests needed before the latency percentiles of an endpoint are known
+  private static final int WARMUP_REQUESTS = 25;
+
+  private static final String ORGANIZATIONS = "{\"requestId\":\"r\",\"page\":0,\"pages\":1,\"entities\":[{\"organizationId\":\"o1\"}]}";
+
+  private HttpServer mServer;
+  private ExecutorService mServerThreads;
+  private File mTestDir;
+  private FavroExportStatus mStatus;
+  private FavroExporter mExporter;
+
+  // responses to send, in the order the requests arrive
+  private final BlockingQueue<ScriptedResponse> mScript = new LinkedBlockingQueue<>();
+
+  // response sent when the script is empty
+  private volatile ScriptedResponse mDefaultResponse;
+
+  // number of requests sent before the scripted responses
+  private long mWarmUpRequests;
+
+
+  @Override
+  protected void setUp () throws Exception {
+    mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    mServer.createContext("/api/v1/organizations", this::serve);
+    mServerThreads = Executors.newCachedThreadPool();
+    mServer.setExecutor(mServerThreads);
+    mServer.start();
+
+    mTestDir = new File("target/testHedgedRequest");
+    mTestDir.mkdirs();
+    FileUtils.cleanDirectory(mTestDir);
+    mStatus = new FavroExportStatus("http://127.0.0.1:" + mServer.getAddress().getPort() + "/api/v1", "user", "token");
+    mExporter = new FavroExporter(mStatus);
+  }
+
+
+  @Override
+  protected void tearDown () {
+    mServer.stop(0);
+    mServerThreads.shutdownNow();
+  }
+
+
+  /**
+   * A fast throttled answer to the duplicate must not replace a slower successful answer to the original request
+   */
+  public void testSlowSuccessBeatsFastError () {
+    warmUp("1000");
+    mScript.add(new ScriptedResponse(1000, 200, "1000"));
+    mScript.add(new ScriptedResponse(0, 429, "1000"));
+
+    List<String> organizations = mExporter.exportOrganizations(mTestDir);
+    Assert.assertEquals(1, organizations.size());
+    FavroExportMetrics metrics = mStatus.getMetrics();
+    Assert.assertEquals(1, metrics.getHedgedRequests());
+    Assert.assertEquals(0, metrics.getHedgeWins());
+    Assert.assertEquals(0, metrics.getThrottledRequests());
+    // the request was not sent again
+    Assert.assertEquals(2, metrics.getRequests() - mWarmUpRequests);
+  }
+
+
+  /**
+   * When both requests fail, a single error response is returned, and the request is retried
+   */
+  public void testBothFail () {
+    warmUp("1000");
+    mScript.add(new ScriptedResponse(500, 500, "1000"));
+    mScript.add(new ScriptedResponse(0, 503, "1000"));
+    mScript.add(new ScriptedResponse(0, 200, "1000"));
+
+    List<String> organizations = mExporter.exportOrganizations(mTestDir);
+    Assert.assertEquals(1, organizations.size());
+    FavroExportMetrics metrics = mStatus.getMetrics();
+    Assert.assertEquals(1, metrics.getHedgedRequests());
+    Assert.assertEquals(1, metrics.getFailedRequests());
+    Assert.assertEquals(3, metrics.getRequests() - mWarmUpRequests);
+  }
+
+
+  /**
+   * Slow requests are hedged when the Favro API doesn't report its rate limits
+   */
+  public void testUnknownBudget () {
+    warmUp(null);
+    mScript.add(new ScriptedResponse(1000, 200, null));
+    mScript.add(new ScriptedResponse(0, 200, null));
+
+    Assert.assertEquals(1, mExporter.exportOrganizations(mTestDir).size());
+    Assert.assertEquals(1, mStatus.getMetrics().getHedgedRequests());
+    Assert.assertEquals(1, mStatus.getMetrics().getHedgeWins());
+  }
+
+
+  /**
+   * Slow requests are not hedged when less than a tenth of the rate limit budget is left
+   */
+  public void testExhaustedBudget () {
+    warmUp("1000");
+    mScript.add(new ScriptedResponse(0, 200, "50"));
+    Assert.assertEquals(1, mExporter.exportOrganizations(mTestDir).size());
+    mScript.add(new ScriptedResponse(300, 200, "50"));
+
+    Assert.assertEquals(1, mExporter.exportOrganizations(mTestDir).size());
+    Assert.assertEquals(0, mStatus.getMetrics().getHedgedRequests());
+  }
+
+
+  /**
+   * Sends fast requests, so that the latency percentiles are known; further requests not in the script get the same fast response
+   * @param pRateLimitRemaining value of the X-RateLimit-Remaining header, null to leave it out
+   */
+  private void warmUp (String pRateLimitRemaining) {
+    mDefaultResponse = new ScriptedResponse(0, 200, pRateLimitRemaining);
+    for (int i = 0; i < WARMUP_REQUESTS; i++) {
+      Assert.assertEquals(1, mExporter.exportOrganizations(mTestDir).size());
+    }
+    mWarmUpRequests = mStatus.getMetrics().getRequests();
+    // hedging is enabled only now, so that no warm up request is hedged and the scripted responses stay in order
+    mExporter.setHedgePercentile(90);
+  }
+
+
+  /**
+   * Sends the next scripted response
+   * @param pExchange HTTP exchange
+   */
+  private void serve (HttpExchange pExchange) throws IOException {
+    ScriptedResponse response = mScript.poll();
+    if (response == null) {
+      response = mDefaultResponse;
+    }
+    try {
+      Thread.sleep(response.mDelay);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+    if (response.mRateLimitRemaining != null) {
+      pExchange.getResponseHeaders().add("X-RateLimit-Remaining", response.mRateLimitRemaining);
+    }
+    byte[] body = (response.mStatus == 200 ? ORGANIZATIONS : "{}").getBytes(StandardCharsets.UTF_8);
+    pExchange.sendResponseHeaders(response.mStatus, body.length);
+    try (OutputStream out = pExchange.getResponseBody()) {
+      out.write(body);
+    } catch (IOException ioe) {
+      // the client aborted the request that lost the race
+    }
+  }
+
+
+  /**
+   * Response sent by the server
+   */
+  private static class ScriptedResponse {
+    private final long mDelay;
+    private final int mStatus;
+    private final String mRateLimitRemaining;
+
+    ScriptedResponse (long pDelay, int pStatus, String pRateLimitRemaining) {
+      mDelay = pDelay;
+      mStatus = pStatus;
+      mRateLimitRemaining = pRateLimitRemaining;
+    }
+  }
+}
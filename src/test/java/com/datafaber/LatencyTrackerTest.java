@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 Sebastiano Pilla
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.datafaber;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+
+/**
+ * Test cases for the latency tracker
+ */
+public class LatencyTrackerTest extends TestCase {
+
+  public void testMinSamples () {
+    LatencyTracker tracker = new LatencyTracker();
+    Assert.assertEquals(-1, tracker.percentile("/cards", 50));
+    for (int i = 1; i < 20; i++) {
+      tracker.record("/cards", i);
+    }
+    Assert.assertEquals(-1, tracker.percentile("/cards", 50));
+    tracker.record("/cards", 20);
+    Assert.assertEquals(10, tracker.percentile("/cards", 50));
+  }
+
+
+  public void testPercentile () {
+    LatencyTracker tracker = new LatencyTracker();
+    // recorded out of order, the percentiles are taken on the sorted latencies
+    for (int i = 100; i >= 1; i--) {
+      tracker.record("/cards", i);
+    }
+    Assert.assertEquals(1, tracker.percentile("/cards", 0.5));
+    Assert.assertEquals(50, tracker.percentile("/cards", 50));
+    Assert.assertEquals(95, tracker.percentile("/cards", 95));
+    Assert.assertEquals(100, tracker.percentile("/cards", 100));
+
+    // endpoints are tracked separately
+    Assert.assertEquals(-1, tracker.percentile("/tasks", 50));
+  }
+
+
+  /**
+   * Only the most recent requests are considered
+   */
+  public void testWindow () {
+    LatencyTracker tracker = new LatencyTracker();
+    for (int i = 0; i < 100; i++) {
+      tracker.record("/cards", 1000);
+    }
+    for (int i = 0; i < 256; i++) {
+      tracker.record("/cards", 10);
+    }
+    Assert.assertEquals(10, tracker.percentile("/cards", 100));
+  }
+}